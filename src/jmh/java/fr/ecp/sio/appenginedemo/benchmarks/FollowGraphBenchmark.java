@@ -0,0 +1,209 @@
+package fr.ecp.sio.appenginedemo.benchmarks;
+
+import fr.ecp.sio.appenginedemo.data.FollowGraph;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The reads of the in-process follow graph (see FollowGraph), through its bounded caches, on a synthetic graph
+ * of 100k users and about 10M relationships held in memory (see FollowGraph.Loader), instead of the Datastore.
+ * Both directions have a power-law distribution: a few users follow or are followed by tens of thousands of people
+ * (their arrays are partial), most have a few dozens of relationships.
+ * The caches hold only a part of the graph, so the benchmarks measure the lookups, the binary searches and the merges,
+ * plus the loads of the arrays evicted or expired (copied from the synthetic graph): see the "loads" counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FollowGraphBenchmark {
+
+    private static final int USERS = 100000;
+    private static final long EDGES = 10000000L;
+    private static final int QUERIES = 4096;
+
+    private static final AtomicLong LOADS = new AtomicLong();
+
+    private long[] queryUsers;
+    private long[] queryTargets;
+    private long[] queryOthers;
+    private int next;
+
+    /**
+     * The number of arrays loaded by FollowGraph (misses of its caches), reported next to the operations
+     */
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Counters {
+
+        public long loads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            loads = 0;
+        }
+
+    }
+
+    /**
+     * The graph in two compressed sparse rows: the targets of the user i are targets[offsets[i - 1]..offsets[i]]
+     * (ids start at 1, like the ids allocated by the Datastore)
+     */
+    private static class SyntheticGraph implements FollowGraph.Loader {
+
+        private final int[] followingOffsets;
+        private final int[] following;
+        private final int[] followersOffsets;
+        private final int[] followers;
+
+        SyntheticGraph(Random random) {
+            // The degree of the user of rank r is proportional to 1/sqrt(r), the sum of 1/sqrt(r) is close to 2*sqrt(USERS)
+            double scale = EDGES / (2 * Math.sqrt(USERS));
+            followingOffsets = new int[USERS + 1];
+            int[] targets = new int[(int) (EDGES * 11 / 10)];
+            int n = 0;
+            for (int i = 0; i < USERS; i++) {
+                int degree = (int) Math.min(USERS - 1, Math.max(1, scale / Math.sqrt(i + 1)));
+                int start = n;
+                for (int j = 0; j < degree; j++) {
+                    // The followed users have the same distribution: the density of u^2 is proportional to 1/sqrt(x)
+                    double u = random.nextDouble();
+                    targets[n++] = (int) (USERS * u * u) + 1;
+                }
+                Arrays.sort(targets, start, n);
+                // Skip the duplicates, a relationship has a single entity
+                int end = start;
+                for (int j = start; j < n; j++) {
+                    if (end == start || targets[end - 1] != targets[j]) {
+                        targets[end++] = targets[j];
+                    }
+                }
+                n = end;
+                followingOffsets[i + 1] = n;
+            }
+            following = Arrays.copyOf(targets, n);
+
+            // The reverse direction, by counting the followers of each user
+            followersOffsets = new int[USERS + 1];
+            for (int target : following) {
+                followersOffsets[target]++;
+            }
+            for (int i = 0; i < USERS; i++) {
+                followersOffsets[i + 1] += followersOffsets[i];
+            }
+            int[] positions = Arrays.copyOf(followersOffsets, USERS);
+            followers = new int[n];
+            for (int i = 0; i < USERS; i++) {
+                for (int j = followingOffsets[i]; j < followingOffsets[i + 1]; j++) {
+                    followers[positions[following[j] - 1]++] = i + 1;
+                }
+            }
+        }
+
+        @Override
+        public long[] load(long id, boolean following, int limit) {
+            LOADS.incrementAndGet();
+            int[] offsets = following ? followingOffsets : followersOffsets;
+            int[] targets = following ? this.following : followers;
+            int start = offsets[(int) id - 1];
+            int length = Math.min(offsets[(int) id] - start, limit);
+            long[] ids = new long[length];
+            for (int i = 0; i < length; i++) {
+                ids[i] = targets[start + i];
+            }
+            return ids;
+        }
+
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        FollowGraph.setLoader(new SyntheticGraph(random));
+
+        // The queried users have the same distribution as the relationships: the most active users are asked more often
+        queryUsers = new long[QUERIES];
+        queryTargets = new long[QUERIES];
+        queryOthers = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queryUsers[i] = randomUser(random);
+            queryTargets[i] = randomUser(random);
+            queryOthers[i] = randomUser(random);
+        }
+    }
+
+    private static long randomUser(Random random) {
+        double u = random.nextDouble();
+        return (long) (USERS * u * u) + 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        // Back to the Datastore, for the other benchmarks run in the same JVM
+        FollowGraph.setLoader(null);
+    }
+
+    @Benchmark
+    public boolean mayFollow(Counters counters) {
+        int i = next++ & (QUERIES - 1);
+        long loads = LOADS.get();
+        boolean result = FollowGraph.mayFollow(queryUsers[i], queryTargets[i]);
+        counters.loads += LOADS.get() - loads;
+        return result;
+    }
+
+    @Benchmark
+    public long[] following(Counters counters) {
+        int i = next++ & (QUERIES - 1);
+        long loads = LOADS.get();
+        long[] result = FollowGraph.getFollowing(queryUsers[i]);
+        counters.loads += LOADS.get() - loads;
+        return result;
+    }
+
+    @Benchmark
+    public long[] commonFollowing(Counters counters) {
+        int i = next++ & (QUERIES - 1);
+        long loads = LOADS.get();
+        long[] result = FollowGraph.getCommonFollowing(queryUsers[i], queryOthers[i]);
+        counters.loads += LOADS.get() - loads;
+        return result;
+    }
+
+    @Benchmark
+    public long[] commonFollowingOfCelebrity(Counters counters) {
+        // The user with the largest array against a random user
+        int i = next++ & (QUERIES - 1);
+        long loads = LOADS.get();
+        long[] result = FollowGraph.getCommonFollowing(1, queryOthers[i]);
+        counters.loads += LOADS.get() - loads;
+        return result;
+    }
+
+    @Benchmark
+    public long[] mutualFollows(Counters counters) {
+        int i = next++ & (QUERIES - 1);
+        long loads = LOADS.get();
+        long[] result = FollowGraph.getMutualFollows(queryUsers[i]);
+        counters.loads += LOADS.get() - loads;
+        return result;
+    }
+
+    @Benchmark
+    public long memoryFootprint() {
+        return FollowGraph.getMemoryFootprint();
+    }
+
+}
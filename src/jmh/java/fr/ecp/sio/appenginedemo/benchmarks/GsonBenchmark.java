@@ -0,0 +1,112 @@
+package fr.ecp.sio.appenginedemo.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.googlecode.objectify.Ref;
+import fr.ecp.sio.appenginedemo.gson.GsonFactory;
+import fr.ecp.sio.appenginedemo.gson.RefAdapterFactory;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the lists of users and messages, as sent by the list endpoints (one page of 50 elements).
+ * The "reflective" configuration is the one used before the model adapters: the same Gson settings, but the models
+ * are read and written by reflection. newGson* measure the former creation of a Gson instance for each request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GsonBenchmark {
+
+    private static final int PAGE_SIZE = 50;
+
+    // "adapters": the shared instance of GsonFactory, "reflective": the baseline without the model adapters
+    @Param({"adapters", "reflective"})
+    private String config;
+
+    private Gson gson;
+    private List<User> users;
+    private List<Message> messages;
+    private String userJson;
+
+    @Setup
+    public void setUp() {
+        gson = "reflective".equals(config) ? createReflectiveGson() : GsonFactory.getGson();
+        users = new ArrayList<>();
+        messages = new ArrayList<>();
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            final User user = new User();
+            user.id = 5629499534213120L + i;
+            user.login = "user" + i;
+            user.avatar = "http://www.gravatar.com/avatar/0123456789abcdef0123456789abcdef?d=wavatar";
+            users.add(user);
+
+            Message message = new Message();
+            message.id = 4785074604081152L + i;
+            message.text = "A message long enough to be valid, number " + i;
+            message.date = new Date(1450000000000L + i * 1000L);
+            // A Ref<> already loaded, as after the prefetch of the responses (see RefPrefetcher)
+            message.user = new Ref<User>() {
+                @Override
+                public User get() {
+                    return user;
+                }
+
+                @Override
+                public boolean isLoaded() {
+                    return true;
+                }
+            };
+            messages.add(message);
+        }
+        userJson = "{\"login\":\"user0\",\"password\":\"secret\",\"email\":\"user0@example.com\"}";
+    }
+
+    @Benchmark
+    public String writeUsers() {
+        return gson.toJson(users);
+    }
+
+    @Benchmark
+    public String writeMessages() {
+        return gson.toJson(messages);
+    }
+
+    @Benchmark
+    public User readUser() {
+        return gson.fromJson(userJson, User.class);
+    }
+
+    @Benchmark
+    public String newGsonWriteUsers() {
+        return createReflectiveGson().toJson(users);
+    }
+
+    @Benchmark
+    public String newGsonWriteMessages() {
+        return createReflectiveGson().toJson(messages);
+    }
+
+    // The configuration of GsonFactory without the ModelAdapterFactory
+    private static Gson createReflectiveGson() {
+        return new GsonBuilder()
+                .disableHtmlEscaping()
+                .registerTypeAdapterFactory(new RefAdapterFactory())
+                .setDateFormat(GsonFactory.ISO_DATE_FORMAT)
+                .create();
+    }
+
+}
@@ -0,0 +1,28 @@
+package fr.ecp.sio.appenginedemo.benchmarks;
+
+import fr.ecp.sio.appenginedemo.utils.MD5Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hash of the email of a new user, for its Gravatar avatar.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MD5Benchmark {
+
+    private String email = "some.user@example.com";
+
+    @Benchmark
+    public String md5Hex() {
+        return MD5Utils.md5Hex(email);
+    }
+
+}
@@ -0,0 +1,147 @@
+package fr.ecp.sio.appenginedemo.benchmarks;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Ref;
+import com.googlecode.objectify.util.Closeable;
+import fr.ecp.sio.appenginedemo.api.ApiException;
+import fr.ecp.sio.appenginedemo.data.MessagesRepository;
+import fr.ecp.sio.appenginedemo.data.UsersRepository;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reads of the repositories, on the local Datastore and Memcache services of the App Engine SDK.
+ * The local services have none of the latency of the real ones: these benchmarks measure our own code
+ * (caches, batching, Objectify) rather than the Datastore.
+ * Each operation starts with an empty Objectify session, like a new request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RepositoryBenchmark {
+
+    private static final int USERS = 100;
+    private static final int FOLLOWED = 20;
+    private static final int MESSAGES_PER_USER = 20;
+    private static final int PAGE_SIZE = 50;
+
+    // Queries are strongly consistent, so the data is readable as soon as it is written
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig(),
+            new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    private Closeable session;
+    private List<Long> userIds;
+    private long readerId;
+    private long authorId;
+    private String readerLogin;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ApiException {
+        helper.setUp();
+        session = ObjectifyService.begin();
+
+        userIds = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            User user = new User();
+            user.id = UsersRepository.allocateNewId();
+            user.login = "user" + i;
+            user.email = "user" + i + "@example.com";
+            user.avatar = "http://www.gravatar.com/avatar/" + i + "?d=wavatar";
+            user.password = "hash" + i;
+            UsersRepository.createUser(user);
+            userIds.add(user.id);
+        }
+        readerId = userIds.get(0);
+        readerLogin = "user0";
+        authorId = userIds.get(1);
+
+        // The reader follows some users, and everybody follows the reader
+        for (int i = 1; i <= FOLLOWED; i++) {
+            UsersRepository.setFollowRelationship(readerId, userIds.get(i), true);
+        }
+        for (int i = 1; i < USERS; i++) {
+            UsersRepository.setFollowRelationship(userIds.get(i), readerId, true);
+        }
+
+        for (int i = 1; i <= FOLLOWED; i++) {
+            for (int j = 0; j < MESSAGES_PER_USER; j++) {
+                Message message = new Message();
+                message.text = "A message long enough to be valid, number " + j;
+                message.date = new Date(1450000000000L + j * 1000L);
+                message.user = Ref.create(Key.create(User.class, userIds.get(i)));
+                MessagesRepository.saveMessage(message);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    @Benchmark
+    public User getUser() {
+        ObjectifyService.ofy().clear();
+        return UsersRepository.getUser(authorId);
+    }
+
+    @Benchmark
+    public User getUserUncached() {
+        ObjectifyService.ofy().clear();
+        UsersRepository.getUserCache().clear();
+        return UsersRepository.getUser(authorId);
+    }
+
+    @Benchmark
+    public User getUserByLogin() {
+        ObjectifyService.ofy().clear();
+        return UsersRepository.getUserByLogin(readerLogin);
+    }
+
+    @Benchmark
+    public List<User> getPublicUsers() {
+        ObjectifyService.ofy().clear();
+        return UsersRepository.getPublicUsers(userIds.subList(0, PAGE_SIZE));
+    }
+
+    @Benchmark
+    public UsersRepository.UsersList getFollowers() {
+        ObjectifyService.ofy().clear();
+        return UsersRepository.getFollowers(readerId, PAGE_SIZE, null);
+    }
+
+    @Benchmark
+    public boolean isFollowerOf() {
+        ObjectifyService.ofy().clear();
+        return UsersRepository.isFollowerOf(readerId, authorId);
+    }
+
+    @Benchmark
+    public MessagesRepository.MessagesList getMessagesFrom() {
+        ObjectifyService.ofy().clear();
+        return MessagesRepository.getMessagesFrom(authorId, PAGE_SIZE, null);
+    }
+
+}
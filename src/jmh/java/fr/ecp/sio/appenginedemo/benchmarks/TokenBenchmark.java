@@ -0,0 +1,49 @@
+package fr.ecp.sio.appenginedemo.benchmarks;
+
+import fr.ecp.sio.appenginedemo.utils.TokenUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.SignatureException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation and verification of the API tokens.
+ * A token is verified on every authenticated request: usually from the cache of the verified tokens,
+ * and once per hour and instance with the signature check.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TokenBenchmark {
+
+    private long userId = 5629499534213120L;
+    private String token;
+
+    @Setup
+    public void setUp() {
+        token = TokenUtils.generateToken(userId);
+    }
+
+    @Benchmark
+    public String generateToken() {
+        return TokenUtils.generateToken(userId);
+    }
+
+    @Benchmark
+    public long parseTokenCached() throws SignatureException {
+        return TokenUtils.parseToken(token);
+    }
+
+    @Benchmark
+    public long parseTokenUncached() throws SignatureException {
+        TokenUtils.getVerifiedTokensCache().clear();
+        return TokenUtils.parseToken(token);
+    }
+
+}
@@ -0,0 +1,81 @@
+package fr.ecp.sio.appenginedemo.load;
+
+import java.util.Arrays;
+
+/**
+ * The results of the calls to one endpoint: latencies, errors and calls to the App Engine services.
+ * All the latencies are kept, so the percentiles are exact; a run of a few minutes fits easily in memory.
+ */
+public class LatencyStats {
+
+    private final String name;
+    private long[] latencies = new long[1024];
+    private int count;
+    private int errors;
+    private long datastoreCalls;
+    private long memcacheCalls;
+
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record a call
+     *
+     * @param latencyNanos   the time from the intended start of the call to its end
+     * @param status         the HTTP status of the response
+     * @param datastoreCalls the number of calls to the Datastore made by the call
+     * @param memcacheCalls  the number of calls to Memcache made by the call
+     */
+    public synchronized void record(long latencyNanos, int status, int datastoreCalls, int memcacheCalls) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latencyNanos;
+        if (status >= 400) {
+            errors++;
+        }
+        this.datastoreCalls += datastoreCalls;
+        this.memcacheCalls += memcacheCalls;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized int getErrors() {
+        return errors;
+    }
+
+    public synchronized double getDatastoreCallsPerRequest() {
+        return count == 0 ? 0 : (double) datastoreCalls / count;
+    }
+
+    public synchronized double getMemcacheCallsPerRequest() {
+        return count == 0 ? 0 : (double) memcacheCalls / count;
+    }
+
+    /**
+     * @param percentiles the percentiles to compute, e.g. 0.5 or 0.999
+     * @return the latencies at these percentiles, in nanoseconds
+     */
+    public synchronized long[] getPercentiles(double... percentiles) {
+        long[] result = new long[percentiles.length];
+        if (count == 0) {
+            return result;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        for (int i = 0; i < percentiles.length; i++) {
+            // Nearest-rank percentile
+            int rank = (int) Math.ceil(percentiles[i] * count);
+            result[i] = sorted[Math.max(0, Math.min(count - 1, rank - 1))];
+        }
+        return result;
+    }
+
+}
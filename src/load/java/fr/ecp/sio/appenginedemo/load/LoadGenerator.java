@@ -0,0 +1,385 @@
+package fr.ecp.sio.appenginedemo.load;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import fr.ecp.sio.appenginedemo.api.MessageServlet;
+import fr.ecp.sio.appenginedemo.api.MessagesServlet;
+import fr.ecp.sio.appenginedemo.api.TokenServlet;
+import fr.ecp.sio.appenginedemo.api.UserServlet;
+import fr.ecp.sio.appenginedemo.api.UsersServlet;
+import fr.ecp.sio.appenginedemo.utils.TokenUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A load test of the API, in a single JVM.
+ * The real servlets run on the local Datastore, Memcache and task queue services of the App Engine SDK.
+ * The generator first builds a synthetic social network through the API: users, follow relationships (a few
+ * celebrities are followed by a large part of the users) and messages. Then it sends a mix of reads and writes
+ * at a constant rate, and reports for each endpoint the throughput, the latency percentiles and the number of
+ * calls to the Datastore and Memcache per request.
+ *
+ * The load is open: the calls are scheduled at a fixed rate, whatever the latency of the previous ones, and the
+ * latency is measured from the scheduled time. A slow server makes the calls queue up, and this waiting time is
+ * part of the latency (otherwise the percentiles would hide the stalls, the "coordinated omission" problem).
+ *
+ * The local services have none of the latency of the real ones: the latencies measure our own code, the number
+ * of Datastore calls per request is the figure to compare with production.
+ * Run it with "mvn -Pload verify", the parameters are system properties, see the constants below.
+ */
+public class LoadGenerator {
+
+    private static final Logger LOG = Logger.getLogger(LoadGenerator.class.getName());
+
+    // The synthetic network
+    private static final int USERS = Integer.getInteger("load.users", 1000);
+    private static final int CELEBRITIES = Integer.getInteger("load.celebrities", 10);
+    private static final int FOLLOWS = Integer.getInteger("load.follows", 20);
+    private static final double CELEBRITY_FOLLOW_RATIO = getDouble("load.celebrityFollowRatio", 0.5);
+    private static final int MESSAGES = Integer.getInteger("load.messages", 5);
+
+    // The workload
+    private static final int QPS = Integer.getInteger("load.qps", 100);
+    private static final int DURATION = Integer.getInteger("load.duration", 30);
+    private static final int THREADS = Integer.getInteger("load.threads", 16);
+    private static final double POST_RATIO = getDouble("load.postRatio", 0.05);
+    private static final double FOLLOW_RATIO = getDouble("load.followRatio", 0.01);
+
+    // The mix of the reads, in relative weights
+    private static final String[] READS = {"timeline", "profile", "followers", "authorMessages", "message", "token"};
+    private static final int[] READ_WEIGHTS = {40, 20, 10, 15, 10, 5};
+
+    private static final String PASSWORD = "secret42";
+    private static final String QUEUE = "default";
+
+    private final Gson gson = new Gson();
+    private final ServletHarness harness;
+    private final long[] userIds = new long[USERS];
+    private final String[] tokens = new String[USERS];
+    private final List<Long> messageIds = Collections.synchronizedList(new ArrayList<Long>());
+    private final Map<String, LatencyStats> stats = new LinkedHashMap<>();
+    private final AtomicInteger tasks = new AtomicInteger();
+
+    private LoadGenerator(ServletHarness harness) {
+        this.harness = harness;
+        for (String read : READS) {
+            stats.put(read, new LatencyStats(read));
+        }
+        stats.put("post", new LatencyStats("post"));
+        stats.put("follow", new LatencyStats("follow"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Queries are strongly consistent, the fan-out tasks are run by our own thread (see runPendingTasks())
+        LocalServiceTestHelper helper = new LocalServiceTestHelper(
+                new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy().setNoStorage(true),
+                new LocalMemcacheServiceTestConfig(),
+                new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+        helper.setUp();
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        ServletHarness.installApiCallCounter();
+
+        // The context-params of web.xml
+        Map<String, String> initParameters = new HashMap<>();
+        initParameters.put("compressionMinSize", "1024");
+        initParameters.put("maxRequestSize", "16384");
+        initParameters.put("maxRequestFields", "32");
+        ServletHarness harness = new ServletHarness(initParameters);
+        harness.register("users", new UsersServlet());
+        harness.register("user", new UserServlet());
+        harness.register("messages", new MessagesServlet());
+        harness.register("message", new MessageServlet());
+        harness.register("token", new TokenServlet());
+
+        final LoadGenerator generator = new LoadGenerator(harness);
+
+        // The API calls need the App Engine environment on every thread
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ApiProxy.setEnvironmentForCurrentThread(environment);
+                        r.run();
+                    }
+                }, "load-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS, threadFactory);
+        ExecutorService taskRunner = Executors.newSingleThreadExecutor(threadFactory);
+
+        try {
+            long start = System.nanoTime();
+            generator.seed();
+            generator.runPendingTasks();
+            System.out.printf(Locale.ROOT, "Seeded %d users, %d messages in %.1f s (%d background tasks)%n",
+                    USERS, generator.messageIds.size(), (System.nanoTime() - start) / 1e9, generator.tasks.get());
+            generator.tasks.set(0);
+
+            // The fan-out tasks run in the background during the load, like on the real task queue
+            taskRunner.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        generator.runPendingTasks();
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+
+            long elapsed = generator.run(workers);
+            taskRunner.shutdownNow();
+            generator.report(elapsed);
+        } finally {
+            taskRunner.shutdownNow();
+            workers.shutdownNow();
+            helper.tearDown();
+        }
+    }
+
+    /**
+     * Build the social network through the API
+     */
+    private void seed() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < USERS; i++) {
+            JsonObject user = new JsonObject();
+            user.addProperty("login", "user" + i);
+            user.addProperty("password", PASSWORD);
+            user.addProperty("email", "user" + i + "@example.com");
+            ServletHarness.Response response = harness.call("users", "POST", null,
+                    Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap(), user.toString());
+            if (response.getStatus() != 200) {
+                throw new IllegalStateException("Cannot create a user: " + response.getBody());
+            }
+            tokens[i] = gson.fromJson(response.getBody(), String.class);
+            userIds[i] = TokenUtils.parseToken(tokens[i]);
+        }
+
+        // Each user follows some others: a celebrity with a given probability, otherwise anybody
+        for (int i = 0; i < USERS; i++) {
+            for (int j = 0; j < FOLLOWS; j++) {
+                int followed = pickUser(random);
+                if (followed != i) {
+                    harness.call("user", "POST", "/" + userIds[followed],
+                            Collections.singletonMap("followed", "true"), auth(i), null);
+                }
+            }
+        }
+
+        // The celebrities post more than the others
+        for (int i = 0; i < USERS; i++) {
+            int count = i < CELEBRITIES ? MESSAGES * 10 : MESSAGES;
+            for (int j = 0; j < count; j++) {
+                post(i, random);
+            }
+        }
+    }
+
+    /**
+     * Send the workload at the target rate
+     *
+     * @return the duration of the run, in nanoseconds
+     */
+    private long run(ExecutorService workers) throws InterruptedException {
+        long interval = TimeUnit.SECONDS.toNanos(1) / QPS;
+        long total = (long) QPS * DURATION;
+        long start = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            final long intended = start + i * interval;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    call(intended);
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        return System.nanoTime() - start;
+    }
+
+    // One call of the workload, chosen at random
+    private void call(long intended) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int reader = random.nextInt(USERS);
+        double draw = random.nextDouble();
+        String operation;
+        ServletHarness.Response response;
+        if (draw < POST_RATIO) {
+            operation = "post";
+            response = post(reader, random);
+        } else if (draw < POST_RATIO + FOLLOW_RATIO) {
+            operation = "follow";
+            response = harness.call("user", "POST", "/" + userIds[pickUser(random)],
+                    Collections.singletonMap("followed", random.nextBoolean() ? "true" : "false"), auth(reader), null);
+        } else {
+            operation = pickRead(random);
+            if (operation.equals("message") && messageIds.isEmpty()) {
+                operation = "timeline";
+            }
+            response = read(operation, reader, random);
+        }
+        stats.get(operation).record(System.nanoTime() - intended, response.getStatus(),
+                response.getDatastoreCalls(), response.getMemcacheCalls());
+    }
+
+    private ServletHarness.Response read(String operation, int reader, Random random) {
+        Map<String, String> none = Collections.emptyMap();
+        switch (operation) {
+            case "timeline":
+                return harness.call("messages", "GET", null, none, auth(reader), null);
+            case "profile":
+                return harness.call("user", "GET", "/" + userIds[pickUser(random)], none, auth(reader), null);
+            case "followers":
+                return harness.call("users", "GET", null,
+                        Collections.singletonMap("followerOf", String.valueOf(userIds[pickUser(random)])), auth(reader), null);
+            case "authorMessages":
+                return harness.call("messages", "GET", null,
+                        Collections.singletonMap("author", String.valueOf(userIds[pickUser(random)])), auth(reader), null);
+            case "message":
+                long messageId;
+                synchronized (messageIds) {
+                    messageId = messageIds.get(random.nextInt(messageIds.size()));
+                }
+                return harness.call("message", "GET", "/" + messageId, none, auth(reader), null);
+            default:
+                JsonObject credentials = new JsonObject();
+                credentials.addProperty("login", "user" + reader);
+                credentials.addProperty("password", PASSWORD);
+                return harness.call("token", "POST", null, none, none, credentials.toString());
+        }
+    }
+
+    private ServletHarness.Response post(int author, Random random) {
+        // A text between 21 and 160 characters, as required by the validation
+        StringBuilder text = new StringBuilder("Message from user" + author + ":");
+        int length = 21 + random.nextInt(140);
+        while (text.length() < length) {
+            text.append(' ').append(Long.toString(random.nextLong() & Long.MAX_VALUE, 36));
+        }
+        JsonObject message = new JsonObject();
+        message.addProperty("text", text.substring(0, length));
+        ServletHarness.Response response = harness.call("messages", "POST", null,
+                Collections.<String, String>emptyMap(), auth(author), message.toString());
+        if (response.getStatus() == 200) {
+            messageIds.add(gson.fromJson(response.getBody(), JsonObject.class).get("id").getAsLong());
+        }
+        return response;
+    }
+
+    // A celebrity with a given probability, otherwise any user
+    private int pickUser(Random random) {
+        if (CELEBRITIES > 0 && random.nextDouble() < CELEBRITY_FOLLOW_RATIO) {
+            return random.nextInt(CELEBRITIES);
+        }
+        return random.nextInt(USERS);
+    }
+
+    private static String pickRead(Random random) {
+        int total = 0;
+        for (int weight : READ_WEIGHTS) {
+            total += weight;
+        }
+        int draw = random.nextInt(total);
+        for (int i = 0; i < READS.length; i++) {
+            draw -= READ_WEIGHTS[i];
+            if (draw < 0) {
+                return READS[i];
+            }
+        }
+        return READS[0];
+    }
+
+    private Map<String, String> auth(int user) {
+        return Collections.singletonMap("Authorization", "Bearer " + tokens[user]);
+    }
+
+    /**
+     * Run the tasks of the default queue, including the ones they add, until the queue is empty.
+     * The tasks are DeferredTasks: their body is the serialized task.
+     */
+    private void runPendingTasks() {
+        LocalTaskQueue queue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+        while (true) {
+            QueueStateInfo state = queue.getQueueStateInfo().get(QUEUE);
+            if (state == null || state.getTaskInfo().isEmpty()) {
+                return;
+            }
+            for (QueueStateInfo.TaskStateInfo info : state.getTaskInfo()) {
+                // Delete first: a failed task is not retried, it would fail again
+                queue.deleteTask(QUEUE, info.getTaskName());
+                Closeable session = ObjectifyService.begin();
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(info.getBodyAsBytes()))) {
+                    ((DeferredTask) in.readObject()).run();
+                    tasks.incrementAndGet();
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "Background task " + info.getTaskName() + " failed", e);
+                } finally {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    private void report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.printf(Locale.ROOT, "%nTarget: %d requests/s for %d s, %d threads, ran for %.1f s, %d background tasks%n",
+                QPS, DURATION, THREADS, seconds, tasks.get());
+        System.out.printf(Locale.ROOT, "%-15s %8s %7s %9s %9s %9s %9s %9s %8s %8s%n",
+                "endpoint", "count", "errors", "req/s", "p50 ms", "p95 ms", "p99 ms", "p999 ms", "ds/req", "mc/req");
+        for (LatencyStats endpoint : stats.values()) {
+            long[] p = endpoint.getPercentiles(0.5, 0.95, 0.99, 0.999);
+            System.out.printf(Locale.ROOT, "%-15s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %8.2f %8.2f%n",
+                    endpoint.getName(), endpoint.getCount(), endpoint.getErrors(), endpoint.getCount() / seconds,
+                    p[0] / 1e6, p[1] / 1e6, p[2] / 1e6, p[3] / 1e6,
+                    endpoint.getDatastoreCallsPerRequest(), endpoint.getMemcacheCallsPerRequest());
+        }
+    }
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+}
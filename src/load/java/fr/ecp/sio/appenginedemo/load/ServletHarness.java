@@ -0,0 +1,333 @@
+package fr.ecp.sio.appenginedemo.load;
+
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Calls the servlets of the API in-process, without a servlet container.
+ * The requests and responses are minimal implementations of the servlet interfaces, built with dynamic proxies.
+ * Each call runs in its own Objectify context, like a request going through the ObjectifyFilter,
+ * and counts the calls it makes to the Datastore and to Memcache.
+ */
+public class ServletHarness {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, String> initParameters;
+    private final Map<String, HttpServlet> servlets = new ConcurrentHashMap<>();
+
+    /**
+     * @param initParameters the context-params of web.xml
+     */
+    public ServletHarness(Map<String, String> initParameters) {
+        this.initParameters = initParameters;
+    }
+
+    /**
+     * Initialize a servlet and make it callable under a name
+     *
+     * @param name    the name of the servlet, as in web.xml
+     * @param servlet a new servlet
+     */
+    public void register(final String name, HttpServlet servlet) throws ServletException {
+        final ServletContext context = proxy(ServletContext.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getInitParameter")) {
+                    return initParameters.get((String) args[0]);
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+        servlet.init(proxy(ServletConfig.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getServletName":
+                        return name;
+                    case "getServletContext":
+                        return context;
+                    case "getInitParameterNames":
+                        return Collections.enumeration(Collections.emptyList());
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+        }));
+        servlets.put(name, servlet);
+    }
+
+    /**
+     * Install the counting of the API calls, after the local services are set up
+     */
+    public static void installApiCallCounter() {
+        @SuppressWarnings("unchecked")
+        ApiProxy.Delegate<ApiProxy.Environment> delegate = ApiProxy.getDelegate();
+        ApiProxy.setDelegate(new CountingDelegate(delegate));
+    }
+
+    /**
+     * Call a servlet
+     *
+     * @param servletName the name of a registered servlet
+     * @param method      the HTTP method
+     * @param pathInfo    the path after the servlet mapping, e.g. "/42", or null
+     * @param parameters  the query parameters
+     * @param headers     the headers
+     * @param body        the JSON body, or null
+     * @return the response
+     */
+    public Response call(String servletName, String method, String pathInfo, Map<String, String> parameters,
+                         Map<String, String> headers, String body) {
+        HttpServlet servlet = servlets.get(servletName);
+        Request request = new Request(method, pathInfo, parameters, headers, body);
+        Response response = new Response();
+        int[] counts = CountingDelegate.COUNTS.get();
+        counts[0] = 0;
+        counts[1] = 0;
+        Closeable session = ObjectifyService.begin();
+        try {
+            servlet.service(proxy(HttpServletRequest.class, request), proxy(HttpServletResponse.class, response));
+        } catch (Exception e) {
+            // An uncaught exception becomes an error page in a real container
+            response.status = 500;
+        } finally {
+            session.close();
+        }
+        response.datastoreCalls = counts[0];
+        response.memcacheCalls = counts[1];
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(ServletHarness.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * The minimal request: method, path, parameters, headers, body and attributes
+     */
+    private static class Request implements InvocationHandler {
+
+        private final String method;
+        private final String pathInfo;
+        private final Map<String, String> parameters;
+        private final Map<String, String> headers = new HashMap<>();
+        private final byte[] body;
+        private final Map<String, Object> attributes = new HashMap<>();
+
+        Request(String method, String pathInfo, Map<String, String> parameters, Map<String, String> headers, String body) {
+            this.method = method;
+            this.pathInfo = pathInfo;
+            this.parameters = parameters;
+            // The header names are case-insensitive
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                this.headers.put(header.getKey().toLowerCase(Locale.ROOT), header.getValue());
+            }
+            this.body = body == null ? new byte[0] : body.getBytes(UTF_8);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            switch (m.getName()) {
+                case "getMethod":
+                    return method;
+                case "getPathInfo":
+                    return pathInfo;
+                case "getParameter":
+                    return parameters.get((String) args[0]);
+                case "getHeader":
+                    return headers.get(((String) args[0]).toLowerCase(Locale.ROOT));
+                case "getDateHeader":
+                case "getIntHeader":
+                    return m.getReturnType() == long.class ? (Object) (-1L) : (Object) (-1);
+                case "getProtocol":
+                    return "HTTP/1.1";
+                case "getContentLength":
+                    return body.length;
+                case "getCharacterEncoding":
+                    return "UTF-8";
+                case "getContentType":
+                    return "application/json";
+                case "getInputStream":
+                    final ByteArrayInputStream in = new ByteArrayInputStream(body);
+                    return new ServletInputStream() {
+                        @Override
+                        public int read() {
+                            return in.read();
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) {
+                            return in.read(b, off, len);
+                        }
+                    };
+                case "getReader":
+                    return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), UTF_8));
+                case "getAttribute":
+                    return attributes.get((String) args[0]);
+                case "setAttribute":
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                case "removeAttribute":
+                    attributes.remove((String) args[0]);
+                    return null;
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        }
+
+    }
+
+    /**
+     * The minimal response: status and body, the headers are ignored
+     */
+    public static class Response implements InvocationHandler {
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private int status = 200;
+        private int datastoreCalls;
+        private int memcacheCalls;
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getBody() {
+            return new String(body.toByteArray(), UTF_8);
+        }
+
+        public int getDatastoreCalls() {
+            return datastoreCalls;
+        }
+
+        public int getMemcacheCalls() {
+            return memcacheCalls;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            switch (m.getName()) {
+                case "setStatus":
+                case "sendError":
+                    status = (Integer) args[0];
+                    return null;
+                case "getOutputStream":
+                    return new ServletOutputStream() {
+                        @Override
+                        public void write(int b) {
+                            body.write(b);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) {
+                            body.write(b, off, len);
+                        }
+                    };
+                case "getWriter":
+                    return new PrintWriter(new OutputStreamWriter(body, UTF_8));
+                case "getCharacterEncoding":
+                    return "UTF-8";
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        }
+
+    }
+
+    /**
+     * Counts the calls of the current thread to the Datastore and Memcache services, then forwards them
+     */
+    private static class CountingDelegate implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+        // The counts of the current thread: Datastore calls, Memcache calls
+        static final ThreadLocal<int[]> COUNTS = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[2];
+            }
+        };
+
+        private final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+        CountingDelegate(ApiProxy.Delegate<ApiProxy.Environment> delegate) {
+            this.delegate = delegate;
+        }
+
+        private static void count(String packageName) {
+            if ("datastore_v3".equals(packageName)) {
+                COUNTS.get()[0]++;
+            } else if ("memcache".equals(packageName)) {
+                COUNTS.get()[1]++;
+            }
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName, String methodName, byte[] request) {
+            count(packageName);
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName, String methodName,
+                                            byte[] request, ApiProxy.ApiConfig apiConfig) {
+            count(packageName);
+            return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+            delegate.log(environment, record);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+
+    }
+
+}
@@ -0,0 +1,38 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import fr.ecp.sio.appenginedemo.data.DeletionsRepository;
+import fr.ecp.sio.appenginedemo.model.UserDeletion;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+/**
+ * A servlet to follow the deletion of the data of a user, restricted to the administrators of the application (see web.xml).
+ * The id of the deleted user is the last part of the path, e.g. "/admin/deletions/42".
+ */
+public class DeletionServlet extends JsonServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param req a request
+     * @return the progress of the deletion
+     * @throws ServletException, IOException, ApiException
+     */
+    @Override
+    protected UserDeletion doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
+        String strId = req.getPathInfo() == null ? "" : req.getPathInfo().substring(1);
+        UserDeletion deletion = null;
+        try {
+            deletion = DeletionsRepository.getUserDeletion(Long.parseLong(strId));
+        } catch (NumberFormatException e) {
+            // Not an id, not found
+        }
+        if (deletion == null) {
+            throw new ApiException(404, "deletionNotFound", "Deletion not found");
+        }
+        return deletion;
+    }
+
+}
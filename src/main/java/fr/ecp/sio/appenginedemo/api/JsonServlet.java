@@ -1,20 +1,24 @@
 package fr.ecp.sio.appenginedemo.api;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import fr.ecp.sio.appenginedemo.data.UsersRepository;
 import fr.ecp.sio.appenginedemo.gson.GsonFactory;
+import fr.ecp.sio.appenginedemo.gson.RefPrefetcher;
 import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.utils.CompressionUtils;
+import fr.ecp.sio.appenginedemo.utils.ParseUtils;
 import fr.ecp.sio.appenginedemo.utils.TokenUtils;
+import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
 import java.security.SignatureException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * JsonServlet is a base servlet class for all the endpoint servlet we create for our API.
@@ -26,27 +30,40 @@ import java.util.regex.Pattern;
 public class JsonServlet extends HttpServlet {
 
 
-    // A constant Pattern, a regex class used to validate and parse the authorization header.
-    // The Pattern is built from the regex string using the static method compile(), then it is ready to be used.
-    protected static final Pattern AUTHORIZATION_PATTERN = Pattern.compile("Bearer (.+)");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+    private static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+    private static final int DEFAULT_MAX_REQUEST_SIZE = 16 * 1024;
+    private static final int DEFAULT_MAX_REQUEST_FIELDS = 32;
+
+    // The name of the request attribute used to remember the authenticated user until the end of the request
+    private static final String AUTHENTICATED_USER_ATTRIBUTE = "authenticatedUser";
 
     // This method can be used by our sub-servlets to get the User sending the request
     // We parse the response header, check it against our repository and return it
+    // The user is resolved only once per request, the next calls return the same object
     protected static User getAuthenticatedUser(HttpServletRequest req) throws ApiException {
+        User user = (User) req.getAttribute(AUTHENTICATED_USER_ATTRIBUTE);
+        if (user == null) {
+            user = resolveAuthenticatedUser(req);
+            req.setAttribute(AUTHENTICATED_USER_ATTRIBUTE, user);
+        }
+        return user;
+    }
+
+    private static User resolveAuthenticatedUser(HttpServletRequest req) throws ApiException {
         // Client applications are supposed to send their token in a "Authorization" header
         String auth = req.getHeader("Authorization");
         if (auth != null) {
-            // We use our static pattern to both validate the pattern and get the token
-            // We create a Matcher that can be used (single use) to validate an input string
-            Matcher m = AUTHORIZATION_PATTERN.matcher(auth);
-            if (!m.matches()) {
+            // We both validate the header and get the token, same as the regex "Bearer (.+)"
+            String token = ParseUtils.getBearerToken(auth);
+            if (token == null) {
                 // The header is not well formatted (should be "Bearer xxxxxxxx")
                 throw new ApiException(401, "invalidAuthorization", "Invalid authorization header format");
             }
             try {
                 // Our tokens actually are just and encrypted id, lets decrypt it
-                // m.group(1) is the first value that was captured by the regex pattern (the token itself)
-                long id = TokenUtils.parseToken(m.group(1));
+                long id = TokenUtils.parseToken(token);
                 // We have the id, lets simply get the user from our repository
                 return UsersRepository.getUser(id);
             } catch (SignatureException e) {
@@ -58,21 +75,33 @@ public class JsonServlet extends HttpServlet {
         }
     }
 
-    // This method can be used by our sub-servlets to get the request JSON body as a JsonObject (generic parsing)
-    protected static JsonObject getJsonRequestBody(HttpServletRequest req) throws IOException {
-        // Here again we simply rely on the Gson library, giving it a Reader opened on the request InputStream
-        // The request is assumed to be a JSON object { ... } with this method
-        return new JsonParser()
-                .parse(req.getReader())
-                .getAsJsonObject();
-    }
-
     // This method can be used by our sub-servlets to get the request JSON body as an object
     // It will parse the request and convert it to an instance of the specified type
     // This is a generic method: the return type T depends on ("is bound to") the second parameter
-    protected static <T> T getJsonRequestBody(HttpServletRequest req, Class<T> type) throws IOException {
-        // We used the Gson library for parsing
-        return GsonFactory.getGson().fromJson(req.getReader(), type);
+    // The body is read as a stream and bounded in size, a body too large or invalid raises an ApiException
+    protected <T> T getJsonRequestBody(HttpServletRequest req, Class<T> type) throws IOException, ApiException {
+        return mRequestDecoder.decode(req, type);
+    }
+
+    // The minimum size of a response body to be compressed, see the "compressionMinSize" parameter in web.xml
+    // Compressing a tiny body costs more CPU than the bytes it saves
+    private int mCompressionMinSize = DEFAULT_COMPRESSION_MIN_SIZE;
+
+    // The decoder of the request bodies, see the "maxRequestSize" and "maxRequestFields" parameters in web.xml
+    private RequestDecoder mRequestDecoder = new RequestDecoder(DEFAULT_MAX_REQUEST_SIZE, DEFAULT_MAX_REQUEST_FIELDS);
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        mCompressionMinSize = getIntParameter("compressionMinSize", DEFAULT_COMPRESSION_MIN_SIZE);
+        mRequestDecoder = new RequestDecoder(
+                getIntParameter("maxRequestSize", DEFAULT_MAX_REQUEST_SIZE),
+                getIntParameter("maxRequestFields", DEFAULT_MAX_REQUEST_FIELDS));
+    }
+
+    private int getIntParameter(String name, int defaultValue) {
+        String value = getServletContext().getInitParameter(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
     }
 
     // All servlets behave the same: they receive request (req) and are supposed to write to the response (resp).
@@ -82,15 +111,30 @@ public class JsonServlet extends HttpServlet {
     @Override
     protected final void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         try {
-            // Call our custom doGet() below to get the response as an Object
-            Object response = doGet(req);
-            // Write this object as JSON into the response
-            sendResponse(response, resp);
+            // A cacheable response may already be in the cache, ready to be sent
+            String cacheKey = getResponseCacheKey(req);
+            byte[] body = cacheKey != null ? ResponseCache.get(cacheKey) : null;
+            if (body == null) {
+                // Call our custom doGet() below to get the response as an Object
+                Object response = doGet(req);
+                if (response instanceof StreamingResponse) {
+                    // A streaming response is never fully in memory, so it is neither cached nor hashed
+                    sendResponse(response, req, resp);
+                    return;
+                }
+                // Convert this object to JSON
+                body = toJson(response);
+                if (cacheKey != null) {
+                    ResponseCache.put(cacheKey, body);
+                }
+            }
+            // Write the JSON into the response, unless the client already has it
+            sendConditionalBody(body, req, resp);
         } catch (ApiException e) {
             // Our subclasses can raise a custom ApiException for the API to send well-formatted errors
             // If we catch one of these, we set the HTTP response code to the defined value and send the error object as JSON
             resp.setStatus(e.getError().status);
-            sendResponse(e.getError(), resp);
+            sendResponse(e.getError(), req, resp);
         }
     }
 
@@ -101,15 +145,23 @@ public class JsonServlet extends HttpServlet {
         return null;
     }
 
+    // Our subclasses can override this method to cache the serialized responses of their doGet().
+    // The key must identify the response: endpoint, parameters and version of the data (see GraphVersions).
+    // It is computed before doGet() is called, so a response computed during a change of version is stored under
+    // the old version and never served again. By default, nothing is cached.
+    protected String getResponseCacheKey(HttpServletRequest req) {
+        return null;
+    }
+
     // Same behavior as for doGet(), we must take care of all the HTTP methods!
     @Override
     protected final void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         try {
             Object response = doPost(req);
-            sendResponse(response,resp);
+            sendResponse(response, req, resp);
         } catch (ApiException e) {
             resp.setStatus(e.getError().status);
-            sendResponse(e.getError(), resp);
+            sendResponse(e.getError(), req, resp);
         }
     }
 
@@ -123,10 +175,10 @@ public class JsonServlet extends HttpServlet {
     protected final void doDelete(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         try {
             Object response = doDelete(req);
-            sendResponse(response,resp);
+            sendResponse(response, req, resp);
         } catch (ApiException e) {
             resp.setStatus(e.getError().status);
-            sendResponse(e.getError(), resp);
+            sendResponse(e.getError(), req, resp);
         }
     }
 
@@ -136,13 +188,89 @@ public class JsonServlet extends HttpServlet {
     }
 
     // Private common place for writing a response Object as JSON into the response stream
-    private void sendResponse(Object response, HttpServletResponse resp) throws IOException {
+    private void sendResponse(Object response, HttpServletRequest req, HttpServletResponse resp) throws IOException {
         // Before writing the actual response, we can send response headers (key-value pairs describing the response)
         // HttpServletResponse has methods to write some headers (here, "Content-Type")
-        resp.setContentType("application/json");
+        resp.setContentType(CONTENT_TYPE);
         // After the headers are written, we can go for the response body
-        // We rely on the Gson library, giving it the object and a Writer opened on the response OutputStream
-        GsonFactory.getGson().toJson(response, resp.getWriter());
+        if (response instanceof StreamingResponse) {
+            // A streaming response writes its elements one by one to the response stream
+            // Its size is unknown but usually large, so it is always compressed if the client accepts it
+            OutputStream out = openOutputStream(resp, negotiateEncoding(req, resp, Integer.MAX_VALUE));
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, UTF_8));
+            ((StreamingResponse) response).write(writer);
+            writer.close();
+            return;
+        }
+        byte[] body = toJson(response);
+        sendBody(body, resp, negotiateEncoding(req, resp, body.length));
+    }
+
+    private static byte[] toJson(Object response) {
+        // Load all the missing Ref<> targets at once, before the serialization would load them one by one
+        RefPrefetcher.prefetch(response);
+        // We rely on the Gson library to convert the object to JSON
+        return GsonFactory.getGson().toJson(response).getBytes(UTF_8);
+    }
+
+    // The response of a GET is written with a strong ETag, a hash of its content.
+    // When a client sends back this ETag with "If-None-Match" and the content did not change, we send a 304 without body.
+    // A strong ETag identifies the bytes sent, so the compressed and the identity bodies get different ones.
+    // ("If-Modified-Since" is handled by HttpServlet.service() for the servlets that override getLastModified())
+    private void sendConditionalBody(byte[] body, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String encoding = negotiateEncoding(req, resp, body.length);
+        String etag = "\"" + DigestUtils.md5Hex(body) + (encoding != null ? "-" + encoding : "") + "\"";
+        resp.setHeader("ETag", etag);
+        if (matchesETag(req.getHeader("If-None-Match"), etag)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        resp.setContentType(CONTENT_TYPE);
+        sendBody(body, resp, encoding);
+    }
+
+    // Write a body, with the content-coding chosen by negotiateEncoding()
+    private void sendBody(byte[] body, HttpServletResponse resp, String encoding) throws IOException {
+        OutputStream out = openOutputStream(resp, encoding);
+        if (out == resp.getOutputStream()) {
+            resp.setContentLength(body.length);
+        }
+        out.write(body);
+        out.close();
+    }
+
+    // The content-coding of a body: null (identity) if it is too small or the client accepts no compression
+    private String negotiateEncoding(HttpServletRequest req, HttpServletResponse resp, int size) {
+        // The response depends on the Accept-Encoding header, the caches between us and the client must know it
+        resp.addHeader("Vary", "Accept-Encoding");
+        String encoding = CompressionUtils.negotiate(req.getHeader("Accept-Encoding"));
+        return size < mCompressionMinSize ? null : encoding;
+    }
+
+    // Returns the stream to write the body to: the response stream itself, or a compressor writing into it
+    private OutputStream openOutputStream(HttpServletResponse resp, String encoding) throws IOException {
+        if (encoding == null) {
+            return resp.getOutputStream();
+        }
+        resp.setHeader("Content-Encoding", encoding);
+        return CompressionUtils.compress(getServletName(), encoding, resp.getOutputStream());
+    }
+
+    // The If-None-Match header is a list of ETags, or "*" (any version); the comparison ignores the weak prefix "W/"
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
 }
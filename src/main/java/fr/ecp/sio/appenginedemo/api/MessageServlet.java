@@ -4,6 +4,7 @@ import fr.ecp.sio.appenginedemo.data.MessagesRepository;
 import fr.ecp.sio.appenginedemo.data.UsersRepository;
 import fr.ecp.sio.appenginedemo.model.Message;
 import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.utils.ParseUtils;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -23,16 +24,10 @@ public class MessageServlet extends JsonServlet {
      * @throws ApiException
      */
     protected static long getMessageIdFromReq(HttpServletRequest req) throws ApiException {
-        // Here we define patterns in order to check the format of the id
-        final String ID_PATTERN = "^[0-9]*$";
-        // Extraction of the parameter in the URI and removal of the initial '/'
-        String strId = req.getPathInfo().substring(1);
+        // The parameter is the URI after the initial '/', it is read in place
+        long id = ParseUtils.parseId(req.getPathInfo(), 1);
         // test if long int
-        if (strId.matches(ID_PATTERN)) {
-            return Long.parseLong(strId);
-        } else {
-            return 0;
-        }
+        return id >= 0 ? id : 0;
     }
 
     /**
@@ -53,7 +48,7 @@ public class MessageServlet extends JsonServlet {
         // Verify if message exists and user is allowed to see it
         if (message == null) {
             throw new ApiException(404, "messageNotFound", "message not found");
-        } else if (currentUser != null && UsersRepository.isFollowerOf(currentUser.id, message.user.get().id)) {
+        } else if (currentUser != null && UsersRepository.isFollowerOf(currentUser.id, message.user.getKey().getId())) {
             return message;
         } else {
             throw new ApiException(500, "accessDenied", "not allowed too see this message");
@@ -77,8 +72,11 @@ public class MessageServlet extends JsonServlet {
         // DONE: Get the message as below
         long id = getMessageIdFromReq(req);
         Message message = MessagesRepository.getMessage(id);
-        // DONE: verify if user is the author
-        if (currentUser.id != message.user.get().id)
+        if (message == null) {
+            throw new ApiException(404, "messageNotFound", "message not found");
+        }
+        // DONE: verify if user is the author (the key of the Ref<> is enough, no need to load the author)
+        if (currentUser.id != message.user.getKey().getId())
             throw new ApiException(500, "accessDenied", "not allowed to midify this message");
         Message messageData = getJsonRequestBody(req, Message.class);
         if (messageData != null) {
@@ -108,7 +106,10 @@ public class MessageServlet extends JsonServlet {
         User currentUser = getAuthenticatedUser(req);
         if (currentUser == null) throw new ApiException(500, "accessDenied", "authorization required");
         Message messageToDelete = MessagesRepository.getMessage(getMessageIdFromReq(req));
-        if (currentUser.id != messageToDelete.id) throw new ApiException(500, "accessDenied", "authorization required");
+        if (messageToDelete == null) {
+            throw new ApiException(404, "messageNotFound", "message not found");
+        }
+        if (currentUser.id != messageToDelete.user.getKey().getId()) throw new ApiException(500, "accessDenied", "authorization required");
 
         // deletion
         MessagesRepository.deleteMessage(messageToDelete.id);
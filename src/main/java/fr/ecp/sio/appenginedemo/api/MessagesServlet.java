@@ -1,17 +1,19 @@
 package fr.ecp.sio.appenginedemo.api;
 
 import com.googlecode.objectify.Ref;
+import fr.ecp.sio.appenginedemo.data.FeedRepository;
 import fr.ecp.sio.appenginedemo.data.MessagesRepository;
+import fr.ecp.sio.appenginedemo.data.TimelinesRepository;
 import fr.ecp.sio.appenginedemo.data.UsersRepository;
 import fr.ecp.sio.appenginedemo.model.Message;
 import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.utils.ParseUtils;
 import fr.ecp.sio.appenginedemo.utils.ValidationUtils;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.util.Date;
-import java.util.List;
 
 /**
  * A servlet to handle all the requests on a list of messages
@@ -19,35 +21,37 @@ import java.util.List;
  */
 public class MessagesServlet extends JsonServlet {
 
+    private static final int LIST_LIMIT = 50;
+
     // A GET request should return a list of messages
 
     /**
-     * This permits to get the messages of an author, of the followed people etc.
+     * This permits to get the messages of an author, or the home timeline with the messages of the followed people.
+     * Both are paginated with the "continuationCursor" parameter.
+     * The home feed can also be built at read time with "feed=pull" (for the accounts too popular to be pushed).
      *
      * @param req a request
-     * @return me List of messages
+     * @return a MessagesList, with the messages and the cursor of the next page
      * @throws ServletException, IOException, ApiException
      */
     @Override
-    protected List<Message> doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
+    protected MessagesRepository.MessagesList doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
         // Authentification
         User currentUser = getAuthenticatedUser(req);
         if (currentUser == null) throw new ApiException(500, "accessDenied", "authorization required");
         // DONE: e.g. add a parameter to get the messages of a user given its id (i.e. /messages?author=256439)
         String urlid = req.getParameter("author");
-        long authorid = 0;
-        if (ValidationUtils.validateId(urlid)) {
-            authorid = Long.valueOf(urlid);
-        }
+        String cursor = req.getParameter("continuationCursor");
+        long authorid = Math.max(0, ParseUtils.parseId(urlid));
         if (authorid != 0 && UsersRepository.isFollowerOf(currentUser.id, authorid)) {
-            return MessagesRepository.getMessagesFrom(authorid);
+            return MessagesRepository.getMessagesFrom(authorid, LIST_LIMIT, cursor);
         }
-        // Default: get the messages of the followed people
-        List<Message> returnlist = null;
-        for (User usr : UsersRepository.getFollowers(currentUser.id, 50, null).users) {
-            returnlist.addAll(MessagesRepository.getMessagesFrom(usr.id));
+        // With "feed=pull", the feed is merged at read time from the messages of the followed people
+        if ("pull".equals(req.getParameter("feed"))) {
+            return FeedRepository.getMergedFeed(currentUser.id, LIST_LIMIT, cursor);
         }
-        return returnlist;
+        // Default: get the home timeline, filled with the messages of the followed people when they are posted
+        return TimelinesRepository.getTimeline(currentUser.id, LIST_LIMIT, cursor);
 
         // TODO: filter the list based on some parameters (order, limit, scope...)
 
@@ -0,0 +1,166 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * This filter records the metrics of every request: latency, size of the response, status and requests in flight.
+ * It is the first filter of web.xml, so the latency includes the other filters (Objectify, URL rewriting).
+ * The metrics are kept in RequestMetrics and exposed by the MetricsServlet.
+ */
+public class MetricsFilter implements Filter {
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest req = (HttpServletRequest) request;
+        RequestMetrics.Route route = RequestMetrics.getRoute(req.getMethod(), req.getRequestURI());
+        // The servlet API has no getter for the status nor the size of a response, the wrapper keeps them
+        MeteredResponse resp = new MeteredResponse((HttpServletResponse) response);
+        long start = System.nanoTime();
+        route.begin();
+        try {
+            chain.doFilter(req, resp);
+        } catch (IOException | ServletException | RuntimeException e) {
+            // The container will send an error page
+            resp.status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+            throw e;
+        } finally {
+            route.end(System.nanoTime() - start, resp.status, resp.getBytes());
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * A response that remembers its status and counts the bytes of its body
+     */
+    private static class MeteredResponse extends HttpServletResponseWrapper {
+
+        private int status = SC_OK;
+        private CountingOutputStream out;
+        private PrintWriter writer;
+
+        MeteredResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        long getBytes() {
+            if (writer != null) {
+                writer.flush();
+            }
+            return out != null ? out.count : 0;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int sc, String sm) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            status = sc;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            status = sc;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            status = SC_FOUND;
+            super.sendRedirect(location);
+        }
+
+        // Always the same stream: JsonServlet compares it with the one it writes to
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new CountingOutputStream(super.getOutputStream());
+            }
+            return out;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            super.flushBuffer();
+        }
+
+    }
+
+    private static class CountingOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+        private long count;
+
+        CountingOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+    }
+
+}
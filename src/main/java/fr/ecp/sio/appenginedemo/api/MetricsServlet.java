@@ -0,0 +1,242 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import com.googlecode.objectify.impl.EntityMemcacheStats;
+import fr.ecp.sio.appenginedemo.data.CacheStats;
+import fr.ecp.sio.appenginedemo.data.FollowGraph;
+import fr.ecp.sio.appenginedemo.data.IdPool;
+import fr.ecp.sio.appenginedemo.data.UsersRepository;
+import fr.ecp.sio.appenginedemo.utils.CompressionUtils;
+import fr.ecp.sio.appenginedemo.utils.Histogram;
+import fr.ecp.sio.appenginedemo.utils.LruCache;
+import fr.ecp.sio.appenginedemo.utils.ParseUtils;
+import fr.ecp.sio.appenginedemo.utils.TokenUtils;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This servlet receives the "/metrics" requests, it sends the metrics of this instance in the text format of
+ * Prometheus: the metrics of the requests recorded by the MetricsFilter, and the statistics of our caches.
+ * Each instance has its own metrics, since the start of the instance.
+ * The requests must send the "metricsToken" context-param as a "Bearer" token: without this param, the endpoint
+ * is disabled. (The scrapers cannot log in as administrators, so the endpoint is not under "/admin".)
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // The limits of the buckets of the histograms sent to Prometheus, in microseconds and bytes
+    private static final long[] LATENCY_BUCKETS = {
+            1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000
+    };
+    private static final long[] SIZE_BUCKETS = {256, 1024, 4096, 16384, 65536, 262144, 1048576};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private String token;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        String value = getServletContext().getInitParameter("metricsToken");
+        token = value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (!isAuthorized(req.getHeader("Authorization"))) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        StringBuilder out = new StringBuilder(16 * 1024);
+        writeRequestMetrics(out);
+        writeCacheMetrics(out);
+        writeDataMetrics(out);
+        byte[] body = out.toString().getBytes(UTF_8);
+        resp.setContentType(CONTENT_TYPE);
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+    }
+
+    // The token is compared in constant time, so the time of a response tells nothing about it
+    private boolean isAuthorized(String authorization) {
+        if (token == null || authorization == null) {
+            return false;
+        }
+        String bearer = ParseUtils.getBearerToken(authorization);
+        return bearer != null && MessageDigest.isEqual(token.getBytes(UTF_8), bearer.getBytes(UTF_8));
+    }
+
+    private static void writeRequestMetrics(StringBuilder out) {
+        List<RequestMetrics.Route> routes = RequestMetrics.getRoutes();
+
+        header(out, "api_requests_in_flight", "gauge", "Requests being processed");
+        for (RequestMetrics.Route route : routes) {
+            sample(out, "api_requests_in_flight", route, null, null, route.getInFlight());
+        }
+
+        header(out, "api_requests_total", "counter", "Requests completed, by class of status");
+        for (RequestMetrics.Route route : routes) {
+            for (int statusClass = 1; statusClass <= 5; statusClass++) {
+                long count = route.getResponses(statusClass);
+                if (count > 0) {
+                    sample(out, "api_requests_total", route, "status", statusClass + "xx", count);
+                }
+            }
+        }
+
+        header(out, "api_responses_total", "counter", "Responses, by status code");
+        for (int status = 100; status < 600; status++) {
+            long count = RequestMetrics.getStatusCount(status);
+            if (count > 0) {
+                out.append("api_responses_total{code=\"").append(status).append("\"} ").append(count).append('\n');
+            }
+        }
+
+        header(out, "api_request_duration_seconds", "histogram", "Latency of the requests");
+        for (RequestMetrics.Route route : routes) {
+            histogram(out, "api_request_duration_seconds", route, route.getLatencies(), LATENCY_BUCKETS, 1e6);
+        }
+
+        header(out, "api_request_duration_quantile_seconds", "gauge",
+                "Latency of the requests at some quantiles, within 12.5%");
+        for (RequestMetrics.Route route : routes) {
+            for (double quantile : QUANTILES) {
+                sample(out, "api_request_duration_quantile_seconds", route, "quantile", String.valueOf(quantile),
+                        route.getLatencies().getValueAtQuantile(quantile) / 1e6);
+            }
+        }
+
+        header(out, "api_response_size_bytes", "histogram", "Size of the response bodies, after compression");
+        for (RequestMetrics.Route route : routes) {
+            histogram(out, "api_response_size_bytes", route, route.getSizes(), SIZE_BUCKETS, 1);
+        }
+    }
+
+    private static void writeCacheMetrics(StringBuilder out) {
+        LruCache<?, ?>[] caches = {UsersRepository.getUserCache(), TokenUtils.getVerifiedTokensCache()};
+        String[] names = {"users", "tokens"};
+        header(out, "api_cache_hits_total", "counter", "Hits of the in-memory caches");
+        for (int i = 0; i < caches.length; i++) {
+            labeled(out, "api_cache_hits_total", "cache", names[i], caches[i].getHits());
+        }
+        header(out, "api_cache_misses_total", "counter", "Misses of the in-memory caches");
+        for (int i = 0; i < caches.length; i++) {
+            labeled(out, "api_cache_misses_total", "cache", names[i], caches[i].getMisses());
+        }
+        header(out, "api_cache_entries", "gauge", "Entries of the in-memory caches");
+        for (int i = 0; i < caches.length; i++) {
+            labeled(out, "api_cache_entries", "cache", names[i], caches[i].size());
+        }
+        header(out, "api_cache_max_entries", "gauge", "Maximum entries of the in-memory caches");
+        for (int i = 0; i < caches.length; i++) {
+            labeled(out, "api_cache_max_entries", "cache", names[i], caches[i].getMaxSize());
+        }
+
+        Map<String, EntityMemcacheStats.Stat> entityStats = CacheStats.getEntityCacheStats();
+        header(out, "api_entity_cache_hits_total", "counter", "Hits of the Objectify Memcache layer, by kind");
+        for (Map.Entry<String, EntityMemcacheStats.Stat> entry : entityStats.entrySet()) {
+            labeled(out, "api_entity_cache_hits_total", "kind", entry.getKey(), entry.getValue().getHits());
+        }
+        header(out, "api_entity_cache_misses_total", "counter", "Misses of the Objectify Memcache layer, by kind");
+        for (Map.Entry<String, EntityMemcacheStats.Stat> entry : entityStats.entrySet()) {
+            labeled(out, "api_entity_cache_misses_total", "kind", entry.getKey(), entry.getValue().getMisses());
+        }
+
+        Map<String, CompressionUtils.Stats> compressionStats = CompressionUtils.getStats();
+        header(out, "api_compressed_responses_total", "counter", "Compressed responses, by endpoint");
+        for (Map.Entry<String, CompressionUtils.Stats> entry : compressionStats.entrySet()) {
+            labeled(out, "api_compressed_responses_total", "endpoint", entry.getKey(), entry.getValue().getResponses());
+        }
+        header(out, "api_compression_input_bytes_total", "counter", "Bytes before compression, by endpoint");
+        for (Map.Entry<String, CompressionUtils.Stats> entry : compressionStats.entrySet()) {
+            labeled(out, "api_compression_input_bytes_total", "endpoint", entry.getKey(),
+                    entry.getValue().getUncompressedBytes());
+        }
+        header(out, "api_compression_output_bytes_total", "counter", "Bytes after compression, by endpoint");
+        for (Map.Entry<String, CompressionUtils.Stats> entry : compressionStats.entrySet()) {
+            labeled(out, "api_compression_output_bytes_total", "endpoint", entry.getKey(),
+                    entry.getValue().getCompressedBytes());
+        }
+        header(out, "api_compression_seconds_total", "counter", "Time spent compressing, by endpoint");
+        for (Map.Entry<String, CompressionUtils.Stats> entry : compressionStats.entrySet()) {
+            labeled(out, "api_compression_seconds_total", "endpoint", entry.getKey(),
+                    entry.getValue().getCompressionNanos() / 1e9);
+        }
+    }
+
+    private static void writeDataMetrics(StringBuilder out) {
+        Map<String, IdPool> pools = IdPool.getPools();
+        header(out, "api_id_pool_allocated_ids_total", "counter", "Ids allocated in advance, by kind");
+        for (Map.Entry<String, IdPool> entry : pools.entrySet()) {
+            labeled(out, "api_id_pool_allocated_ids_total", "kind", entry.getKey(), entry.getValue().getAllocatedIds());
+        }
+        header(out, "api_id_pool_allocated_blocks_total", "counter", "Blocks of ids allocated, by kind");
+        for (Map.Entry<String, IdPool> entry : pools.entrySet()) {
+            labeled(out, "api_id_pool_allocated_blocks_total", "kind", entry.getKey(),
+                    entry.getValue().getAllocatedBlocks());
+        }
+        header(out, "api_id_pool_exhaustions_total", "counter", "Requests that waited for a block of ids, by kind");
+        for (Map.Entry<String, IdPool> entry : pools.entrySet()) {
+            labeled(out, "api_id_pool_exhaustions_total", "kind", entry.getKey(), entry.getValue().getExhaustions());
+        }
+
+        header(out, "api_follow_graph_edges", "gauge", "Relationships in the in-memory follow graph, once per direction");
+        out.append("api_follow_graph_edges ").append(FollowGraph.getEdgeCount()).append('\n');
+        header(out, "api_follow_graph_memory_bytes", "gauge", "Estimated memory used by the in-memory follow graph");
+        out.append("api_follow_graph_memory_bytes ").append(FollowGraph.getMemoryFootprint()).append('\n');
+    }
+
+    // The cumulative buckets, the sum and the count of a histogram, the values are divided by the unit (e.g. 1e6 for seconds)
+    private static void histogram(StringBuilder out, String name, RequestMetrics.Route route, Histogram histogram,
+                                  long[] buckets, double unit) {
+        for (long limit : buckets) {
+            sample(out, name + "_bucket", route, "le", String.valueOf(limit / unit),
+                    histogram.getCountAtOrBelow(limit));
+        }
+        long count = histogram.getCount();
+        sample(out, name + "_bucket", route, "le", "+Inf", count);
+        sample(out, name + "_sum", route, null, null, histogram.getSum() / unit);
+        sample(out, name + "_count", route, null, null, count);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, RequestMetrics.Route route, String label, String value,
+                               Object sample) {
+        out.append(name).append("{route=\"").append(route.getPath()).append("\",method=\"").append(route.getMethod());
+        if (label != null) {
+            out.append("\",").append(label).append("=\"").append(value);
+        }
+        out.append("\"} ").append(sample).append('\n');
+    }
+
+    private static void labeled(StringBuilder out, String name, String label, String value, Object sample) {
+        out.append(name).append('{').append(label).append("=\"");
+        // The label values are escaped as in the Prometheus format
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append("\"} ").append(sample).append('\n');
+    }
+
+}
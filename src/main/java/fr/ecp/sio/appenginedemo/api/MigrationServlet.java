@@ -0,0 +1,58 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import fr.ecp.sio.appenginedemo.data.CountersRepository;
+import fr.ecp.sio.appenginedemo.data.MessagesRepository;
+import fr.ecp.sio.appenginedemo.data.TimelinesRepository;
+import fr.ecp.sio.appenginedemo.data.UsersRepository;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+/**
+ * A servlet to start the data migrations, restricted to the administrators of the application (see web.xml).
+ * The name of the migration is the last part of the path, e.g. "/admin/migrations/followers".
+ * The migrations run in the background on the Task Queue.
+ */
+public class MigrationServlet extends JsonServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Starts a migration:
+     *  - "followers": the relationships are moved to their deterministic keys
+     *  - "unique-indexes": the LoginIndex and EmailIndex entities of the existing users are created
+     *  - "messages": the existing messages are saved again, to index their author and date
+     *  - "timelines": the timeline entries stored under the users are moved under their Timeline
+     *  - "counters": the counters of the users are computed again from their relationships and messages
+     *
+     * @param req a request
+     * @return a status message
+     * @throws ServletException, IOException, ApiException
+     */
+    @Override
+    protected String doPost(HttpServletRequest req) throws ServletException, IOException, ApiException {
+        String migration = req.getPathInfo() == null ? "" : req.getPathInfo().substring(1);
+        switch (migration) {
+            case "followers":
+                UsersRepository.migrateFollowerKeys();
+                break;
+            case "unique-indexes":
+                UsersRepository.migrateUniqueIndexes();
+                break;
+            case "messages":
+                MessagesRepository.migrateMessageIndexes();
+                break;
+            case "timelines":
+                TimelinesRepository.migrateTimelines();
+                break;
+            case "counters":
+                CountersRepository.recountAll();
+                break;
+            default:
+                throw new ApiException(404, "migrationNotFound", "Unknown migration");
+        }
+        return "migration started";
+    }
+
+}
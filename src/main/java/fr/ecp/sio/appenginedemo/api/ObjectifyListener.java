@@ -0,0 +1,24 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import com.googlecode.objectify.ObjectifyService;
+import fr.ecp.sio.appenginedemo.data.ConfiguredObjectifyFactory;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Installs our factory of Objectify when the application starts, before any entity class is registered
+ * (the repositories register their classes on their first use, during a request).
+ */
+public class ObjectifyListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        ObjectifyService.setFactory(new ConfiguredObjectifyFactory());
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+    }
+
+}
@@ -0,0 +1,197 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import fr.ecp.sio.appenginedemo.gson.GsonFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes the JSON body of a request into an object, reading the body as a stream.
+ * Unlike Gson.fromJson(), the reader is strict: comments, single quotes, unquoted names or NaN are refused.
+ * The values are bound directly by the adapter of the type (see ModelAdapterFactory), without building a tree first.
+ * The body is limited in bytes and in number of fields: an oversized body fails as soon as the limit is crossed,
+ * before the rest of it is read.
+ */
+public class RequestDecoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int maxBytes;
+    private final int maxFields;
+
+    /**
+     * @param maxBytes  maximum size of a body, in bytes
+     * @param maxFields maximum number of fields in a body, at any depth
+     */
+    public RequestDecoder(int maxBytes, int maxFields) {
+        this.maxBytes = maxBytes;
+        this.maxFields = maxFields;
+    }
+
+    /**
+     * @param req  a request with a JSON body
+     * @param type the class of the body
+     * @return the body, or null if the body is empty
+     * @throws ApiException if the body is too large or is not a valid JSON value of this type
+     */
+    public <T> T decode(HttpServletRequest req, Class<T> type) throws IOException, ApiException {
+        // A declared size is checked before reading anything
+        if (req.getContentLength() > maxBytes) {
+            throw tooLarge();
+        }
+        // JSON is UTF-8, unless the client says otherwise
+        Charset charset = UTF_8;
+        if (req.getCharacterEncoding() != null) {
+            try {
+                charset = Charset.forName(req.getCharacterEncoding());
+            } catch (IllegalArgumentException e) {
+                throw new ApiException(415, "invalidCharset", "Unsupported charset");
+            }
+        }
+        LimitedJsonReader reader = new LimitedJsonReader(
+                new InputStreamReader(new LimitedInputStream(req.getInputStream(), maxBytes), charset), maxFields);
+        try {
+            try {
+                reader.peek();
+            } catch (EOFException e) {
+                // An empty body
+                return null;
+            }
+            T value = GsonFactory.getGson().getAdapter(type).read(reader);
+            // Like Gson, we refuse anything after the value
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw invalid();
+            }
+            return value;
+        } catch (BodyTooLargeException e) {
+            throw tooLarge();
+        } catch (TooManyFieldsException e) {
+            throw new ApiException(400, "invalidRequest", "Too many fields in the JSON body");
+        } catch (EOFException | MalformedJsonException | JsonParseException | IllegalStateException | NumberFormatException e) {
+            // A syntax error, a truncated body, or a value of the wrong type
+            throw invalid();
+        }
+    }
+
+    private ApiException tooLarge() {
+        return new ApiException(413, "requestTooLarge", "The request body exceeds " + maxBytes + " bytes");
+    }
+
+    private static ApiException invalid() {
+        return new ApiException(400, "invalidRequest", "Invalid JSON body");
+    }
+
+    private static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class TooManyFieldsException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Fails as soon as more than maxBytes bytes are read
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private final long maxBytes;
+        private long count;
+
+        LimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws BodyTooLargeException {
+            count += n;
+            if (count > maxBytes) {
+                throw new BodyTooLargeException();
+            }
+        }
+
+    }
+
+    /**
+     * Fails as soon as more than maxFields names are read, including the names inside the skipped values
+     */
+    private static class LimitedJsonReader extends JsonReader {
+
+        private final int maxFields;
+        private int fields;
+
+        LimitedJsonReader(Reader in, int maxFields) {
+            super(in);
+            this.maxFields = maxFields;
+        }
+
+        @Override
+        public String nextName() throws IOException {
+            if (++fields > maxFields) {
+                throw new TooManyFieldsException();
+            }
+            return super.nextName();
+        }
+
+        // The adapters skip the unknown fields: their content is walked token by token, so its names are counted too
+        @Override
+        public void skipValue() throws IOException {
+            int depth = 0;
+            do {
+                switch (peek()) {
+                    case BEGIN_ARRAY:
+                        beginArray();
+                        depth++;
+                        break;
+                    case BEGIN_OBJECT:
+                        beginObject();
+                        depth++;
+                        break;
+                    case END_ARRAY:
+                        endArray();
+                        depth--;
+                        break;
+                    case END_OBJECT:
+                        endObject();
+                        depth--;
+                        break;
+                    case NAME:
+                        nextName();
+                        break;
+                    default:
+                        super.skipValue();
+                        break;
+                }
+            } while (depth > 0);
+        }
+
+    }
+
+}
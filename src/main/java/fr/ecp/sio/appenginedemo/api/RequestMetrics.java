@@ -0,0 +1,204 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import fr.ecp.sio.appenginedemo.utils.Histogram;
+import fr.ecp.sio.appenginedemo.utils.StripedCounters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The metrics of the requests, recorded by the MetricsFilter and exposed by the MetricsServlet.
+ * The requests are grouped by route (the URL pattern, with the ids replaced) and HTTP method.
+ * The metrics of a route are created on its first request, after that nothing is allocated to record a request.
+ */
+public class RequestMetrics {
+
+    // The routes of the API, see web.xml and urlrewrite.xml
+    static final String[] ROUTES = {
+            "/users",
+            "/users/{id}",
+            "/users/{id}/followed",
+            "/users/{id}/followers",
+            "/messages",
+            "/messages/{id}",
+            "/auth/token",
+            "/image",
+            "/admin",
+            "/metrics",
+            "other"
+    };
+    static final String[] METHODS = {"GET", "POST", "PUT", "DELETE", "other"};
+
+    private static final int USERS = 0;
+    private static final int USER = 1;
+    private static final int USER_FOLLOWED = 2;
+    private static final int USER_FOLLOWERS = 3;
+    private static final int MESSAGES = 4;
+    private static final int MESSAGE = 5;
+    private static final int TOKEN = 6;
+    private static final int IMAGE = 7;
+    private static final int ADMIN = 8;
+    private static final int METRICS = 9;
+    private static final int OTHER = 10;
+
+    // The counters of each status code, for all the routes
+    private static final StripedCounters STATUS_CODES = new StripedCounters(600);
+
+    private static final AtomicReferenceArray<Route> ROUTE_METRICS =
+            new AtomicReferenceArray<>(ROUTES.length * METHODS.length);
+
+    /**
+     * @param method the HTTP method of a request
+     * @param uri    the path of the request, e.g. "/users/42/followers"
+     * @return the metrics of the route matching the request
+     */
+    public static Route getRoute(String method, String uri) {
+        int index = getRouteIndex(uri) * METHODS.length + getMethodIndex(method);
+        Route route = ROUTE_METRICS.get(index);
+        if (route == null) {
+            ROUTE_METRICS.compareAndSet(index, null, new Route(ROUTES[index / METHODS.length], METHODS[index % METHODS.length]));
+            route = ROUTE_METRICS.get(index);
+        }
+        return route;
+    }
+
+    /**
+     * @return the routes which received at least one request
+     */
+    public static List<Route> getRoutes() {
+        List<Route> routes = new ArrayList<>();
+        for (int i = 0; i < ROUTE_METRICS.length(); i++) {
+            Route route = ROUTE_METRICS.get(i);
+            if (route != null) {
+                routes.add(route);
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * @return the number of responses with this status code, since the start of the instance
+     */
+    public static long getStatusCount(int status) {
+        return STATUS_CODES.get(status);
+    }
+
+    // A hand-written matching of the routes, without regex nor substring
+    static int getRouteIndex(String uri) {
+        if (uri == null) {
+            return OTHER;
+        }
+        int length = uri.length();
+        // Ignore a trailing slash
+        if (length > 1 && uri.charAt(length - 1) == '/') {
+            length--;
+        }
+        if (startsWithSegment(uri, length, "/users")) {
+            int start = 6;
+            if (length == start) return USERS;
+            int end = uri.indexOf('/', start + 1);
+            if (end < 0 || end >= length) return USER;
+            if (isSegment(uri, end, length, "/followed")) return USER_FOLLOWED;
+            if (isSegment(uri, end, length, "/followers")) return USER_FOLLOWERS;
+            return OTHER;
+        }
+        if (startsWithSegment(uri, length, "/messages")) {
+            int start = 9;
+            if (length == start) return MESSAGES;
+            int end = uri.indexOf('/', start + 1);
+            return end < 0 || end >= length ? MESSAGE : OTHER;
+        }
+        if (startsWithSegment(uri, length, "/auth/token")) {
+            return length == 11 ? TOKEN : OTHER;
+        }
+        if (startsWithSegment(uri, length, "/image")) return IMAGE;
+        if (startsWithSegment(uri, length, "/admin")) return ADMIN;
+        if (startsWithSegment(uri, length, "/metrics")) return METRICS;
+        return OTHER;
+    }
+
+    // The path starts with the prefix, followed by the end of the path or a "/"
+    private static boolean startsWithSegment(String uri, int length, String prefix) {
+        int n = prefix.length();
+        return length >= n && uri.startsWith(prefix) && (length == n || uri.charAt(n) == '/');
+    }
+
+    private static boolean isSegment(String uri, int start, int length, String segment) {
+        return length - start == segment.length() && uri.startsWith(segment, start);
+    }
+
+    static int getMethodIndex(String method) {
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    /**
+     * The metrics of a route and a method
+     */
+    public static class Route {
+
+        // The counters: the responses by status class (index 1 for 1xx... 5, 0 for an invalid status), in flight
+        private static final int IN_FLIGHT = 6;
+
+        private final String path;
+        private final String method;
+        // The latencies in microseconds, and the sizes of the response bodies in bytes
+        private final Histogram latencies = new Histogram();
+        private final Histogram sizes = new Histogram();
+        private final StripedCounters counters = new StripedCounters(7);
+
+        Route(String path, String method) {
+            this.path = path;
+            this.method = method;
+        }
+
+        void begin() {
+            counters.increment(IN_FLIGHT);
+        }
+
+        void end(long nanos, int status, long bytes) {
+            counters.decrement(IN_FLIGHT);
+            latencies.record(nanos / 1000);
+            sizes.record(bytes);
+            boolean valid = status >= 100 && status < 600;
+            counters.increment(valid ? status / 100 : 0);
+            if (valid) {
+                STATUS_CODES.increment(status);
+            }
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public Histogram getLatencies() {
+            return latencies;
+        }
+
+        public Histogram getSizes() {
+            return sizes;
+        }
+
+        public long getInFlight() {
+            return counters.get(IN_FLIGHT);
+        }
+
+        /**
+         * @param statusClass 1 to 5 for the responses 1xx to 5xx
+         */
+        public long getResponses(int statusClass) {
+            return counters.get(statusClass);
+        }
+
+    }
+
+}
@@ -0,0 +1,28 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * A cache of serialized responses, stored in Memcache and shared by all the instances.
+ * The keys must contain everything the response depends on, including the version stamps of the data
+ * (see GraphVersions), so an entry never has to be invalidated explicitly.
+ */
+public class ResponseCache {
+
+    private static final MemcacheService MEMCACHE = MemcacheServiceFactory.getMemcacheService("responses");
+
+    // The responses may contain data not covered by the version stamps (e.g. the avatars of the users in a list),
+    // so the entries do not live long
+    private static final int EXPIRATION_SECONDS = 300;
+
+    public static byte[] get(String key) {
+        return (byte[]) MEMCACHE.get(key);
+    }
+
+    public static void put(String key, byte[] body) {
+        MEMCACHE.put(key, body, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+    }
+
+}
@@ -0,0 +1,16 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * A response that writes itself as JSON, element by element, instead of being converted by Gson as a whole.
+ * Our servlets can return it for large responses: the elements are written as soon as they are read from the
+ * repository, so they never have to be all in memory at the same time.
+ */
+public interface StreamingResponse {
+
+    void write(JsonWriter writer) throws IOException;
+
+}
@@ -1,7 +1,7 @@
 package fr.ecp.sio.appenginedemo.api;
 
-import com.google.gson.JsonObject;
 import fr.ecp.sio.appenginedemo.data.UsersRepository;
+import fr.ecp.sio.appenginedemo.model.Credentials;
 import fr.ecp.sio.appenginedemo.model.User;
 import fr.ecp.sio.appenginedemo.utils.TokenUtils;
 import fr.ecp.sio.appenginedemo.utils.ValidationUtils;
@@ -24,9 +24,12 @@ public class TokenServlet extends JsonServlet {
     protected String doPost(HttpServletRequest req) throws ServletException, IOException, ApiException {
 
         // Extract login and password from request
-        JsonObject params = getJsonRequestBody(req);
-        String login = params.get("login").getAsString();
-        String password = params.get("password").getAsString();
+        Credentials credentials = getJsonRequestBody(req, Credentials.class);
+        if (credentials == null) {
+            throw new ApiException(400, "invalidRequest", "Invalid JSON body");
+        }
+        String login = credentials.login;
+        String password = credentials.password;
 
         // Check validity
         if (!ValidationUtils.validateLogin(login)) {
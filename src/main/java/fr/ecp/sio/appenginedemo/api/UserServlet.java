@@ -1,7 +1,10 @@
 package fr.ecp.sio.appenginedemo.api;
 
+import fr.ecp.sio.appenginedemo.data.CountersRepository;
 import fr.ecp.sio.appenginedemo.data.UsersRepository;
 import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.model.UserDeletion;
+import fr.ecp.sio.appenginedemo.utils.ParseUtils;
 import fr.ecp.sio.appenginedemo.utils.ValidationUtils;
 
 import javax.servlet.ServletException;
@@ -22,17 +25,16 @@ public class UserServlet extends JsonServlet {
      * @throws ApiException
      */
     protected static long getUserIdFromReq(HttpServletRequest req) throws ApiException {
-        // Here we define patterns in order to check the format of the id
-        final String ID_PATTERN = "^[0-9]*$";
-        final String ME_PATTERN = "^[Mm][Ee]$";
-        // Extraction of the parameter in the URI and removal of the initial '/'
-        String strId = req.getPathInfo().substring(1);
+        // The parameter is the URI after the initial '/', it is read in place
+        String path = req.getPathInfo();
         // test if long int or "me"
-        if (strId.matches(ID_PATTERN)) {
-            return Long.parseLong(strId);
-        } else if (strId.matches(ME_PATTERN)) {
-            if (getAuthenticatedUser(req) != null) {
-                return getAuthenticatedUser(req).id;
+        long id = ParseUtils.parseId(path, 1);
+        if (id >= 0) {
+            return id;
+        } else if (ParseUtils.isMe(path, 1)) {
+            User currentUser = getAuthenticatedUser(req);
+            if (currentUser != null) {
+                return currentUser.id;
             } else {
                 throw new ApiException(500, "accessDenied", "invalid token");
             }
@@ -58,17 +60,24 @@ public class UserServlet extends JsonServlet {
         if (id == 0) {
             throw new ApiException(404, "userNotFound", "User not found");
         }
-        // Lookup in repository
-        User user = UsersRepository.getUser(id);
+        // DONE: Add some mechanism to hide private info about a user (email) except if he is the caller
+        User currentUser = getAuthenticatedUser(req);
+        User user;
+        if (currentUser != null && currentUser.id == id) {
+            user = currentUser;
+        } else {
+            // Lookup in repository, only the public view is read
+            user = UsersRepository.getPublicUser(id);
+        }
         // DONE: not found
         if (user == null) {
             throw new ApiException(404, "userNotFound", "User not found");
         }
-        // DONE: Add some mechanism to hide private info about a user (email) except if he is the caller
-        User currentUser = getAuthenticatedUser(req);
-        if (currentUser != null && currentUser.id != user.id) {
-            return UsersRepository.obfuscatedUser(user);
-        }
+        // Add the counters to the profile
+        CountersRepository.Counts counts = CountersRepository.getCounts(id);
+        user.followersCount = counts.followers;
+        user.followingCount = counts.following;
+        user.messagesCount = counts.messages;
         return user;
     }
 
@@ -94,17 +103,15 @@ public class UserServlet extends JsonServlet {
         String follow = req.getParameter("followed");
         if (follow != null) {
             // true = follow, false = unfollow
-            final String T_PATTERN = "^[tT]rue$";
-            final String F_PATTERN = "^[fF]alse$";
             User followedUser = UsersRepository.getUser(UserServlet.getUserIdFromReq(req));
             if (followedUser == null || followedUser.id == 0) {
                 throw new ApiException(404, "userNotFound", "User to follow not found");
             }
-            if (follow.matches(T_PATTERN)) {
+            if (ParseUtils.isTrue(follow)) {
                 UsersRepository.setFollowRelationship(currentUser.id, followedUser.id, true);
                 return followedUser;
             }
-            if (follow.matches(F_PATTERN)) {
+            if (ParseUtils.isFalse(follow)) {
                 UsersRepository.setFollowRelationship(currentUser.id, followedUser.id, false);
                 return currentUser;
             }
@@ -124,13 +131,9 @@ public class UserServlet extends JsonServlet {
             }
             if (!ValidationUtils.validateEmail(userData.email)) {
                 throw new ApiException(400, "invalidEmail", "Invalid email");
-            } else {
-                if (UsersRepository.getUserByEmail(userData.email) != null) {
-                    throw new ApiException(400, "duplicateEmail", "Duplicate email");
-                }
-                currentUser.email = userData.email;
             }
-            UsersRepository.saveUser(currentUser);
+            // Save the user with the new email, checking in a transaction that no other user has it
+            UsersRepository.updateEmail(currentUser, userData.email);
             return currentUser;
         }
         return null;
@@ -138,25 +141,25 @@ public class UserServlet extends JsonServlet {
 
     /**
      * A user can DELETE its own account. This method call UserRepository.deleteUser() which
-     * also deletes relationships (following/follower)
+     * also starts the deletion of the relationships (following/follower) and messages in the background
      *
      * @param req: the request, including URL and parameters
-     * @return null
+     * @return the progress of the deletion
      * @throws ServletException
      * @throws IOException
      * @throws ApiException
      */
     @Override
-    protected Void doDelete(HttpServletRequest req) throws ServletException, IOException, ApiException {
+    protected UserDeletion doDelete(HttpServletRequest req) throws ServletException, IOException, ApiException {
         // Authentification
         User currentUser = getAuthenticatedUser(req);
         if (currentUser == null) throw new ApiException(500, "accessDenied", "authorization required");
         User userToDelete = UsersRepository.getUser(UserServlet.getUserIdFromReq(req));
+        if (userToDelete == null) throw new ApiException(404, "userNotFound", "User not found");
         if (currentUser.id != userToDelete.id) throw new ApiException(500, "accessDenied", "authorization required");
 
-        // deletion
-        UsersRepository.deleteUser(userToDelete.id);
-        return null;
+        // deletion, the response is sent without waiting for the data of the user to be deleted
+        return UsersRepository.deleteUser(userToDelete.id);
     }
 
 }
\ No newline at end of file
@@ -1,8 +1,13 @@
 package fr.ecp.sio.appenginedemo.api;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import fr.ecp.sio.appenginedemo.data.GraphVersions;
 import fr.ecp.sio.appenginedemo.data.UsersRepository;
+import fr.ecp.sio.appenginedemo.gson.GsonFactory;
 import fr.ecp.sio.appenginedemo.model.User;
 import fr.ecp.sio.appenginedemo.utils.MD5Utils;
+import fr.ecp.sio.appenginedemo.utils.ParseUtils;
 import fr.ecp.sio.appenginedemo.utils.TokenUtils;
 import fr.ecp.sio.appenginedemo.utils.ValidationUtils;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -10,7 +15,6 @@ import org.apache.commons.codec.digest.DigestUtils;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.util.List;
 
 
 /**
@@ -22,23 +26,80 @@ public class UsersServlet extends JsonServlet {
     private static final int LIST_LIMIT = 50;
 
     /**
-     * This method returns the list of followers/followed users, depending on the arguments of the URI
+     * This method returns the list of followers/followed users, depending on the arguments of the URI.
+     * Without these arguments, it returns the list of all the users.
+     * The lists are paginated with the "limit" and "continuationCursor" parameters.
+     * With "stream=true", the public views of all the users are streamed in a single response (for exports).
      * @param req: the request object
-     * @return a List<User>
+     * @return a UsersList, with the users and the cursor of the next page, or a StreamingResponse
      * @throws ServletException, IOException, ApiException
      */
     @Override
-    protected List<User> doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
+    protected Object doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
         String followedBy = req.getParameter("followedBy");
         String followerOf = req.getParameter("followerOf");
         String cursor = req.getParameter("continuationCursor");
-        if(followerOf != null && ValidationUtils.validateId(followerOf)){
-            return UsersRepository.getFollowers(Long.parseLong(followerOf), LIST_LIMIT, cursor).users;
+        int limit = getLimit(req);
+        long followerOfId = ParseUtils.parseId(followerOf);
+        if (followerOfId >= 0) {
+            return UsersRepository.getFollowers(followerOfId, limit, cursor);
         }
-        if(followedBy != null && ValidationUtils.validateId(followedBy)){
-            return UsersRepository.getUsersFollowed(Long.parseLong(followedBy), LIST_LIMIT, cursor).users;
+        long followedById = ParseUtils.parseId(followedBy);
+        if (followedById >= 0) {
+            return UsersRepository.getUsersFollowed(followedById, limit, cursor);
         }
-        return UsersRepository.getUsers().users;
+        if ("true".equals(req.getParameter("stream"))) {
+            return new StreamingResponse() {
+                @Override
+                public void write(JsonWriter writer) throws IOException {
+                    TypeAdapter<User> adapter = GsonFactory.getGson().getAdapter(User.class);
+                    writer.beginArray();
+                    for (User user : UsersRepository.getAllUsers()) {
+                        // Only the public view, like the paginated list: no email nor password hash
+                        adapter.write(writer, UsersRepository.obfuscatedUser(user));
+                    }
+                    writer.endArray();
+                }
+            };
+        }
+        return UsersRepository.getUsers(limit, cursor);
+    }
+
+    // The public lists are cached, keyed by their parameters and the version of the relationships they show
+    // A list that changed a moment ago may be read from indexes not updated yet, so it is not cached
+    @Override
+    protected String getResponseCacheKey(HttpServletRequest req) {
+        String followedBy = req.getParameter("followedBy");
+        String followerOf = req.getParameter("followerOf");
+        String params = req.getParameter("limit") + ":" + req.getParameter("continuationCursor");
+        long id = ParseUtils.parseId(followerOf);
+        if (id >= 0) {
+            return getCacheKey("followers:" + id, GraphVersions.getUserVersion(id), params);
+        }
+        id = ParseUtils.parseId(followedBy);
+        if (id >= 0) {
+            return getCacheKey("followed:" + id, GraphVersions.getUserVersion(id), params);
+        }
+        if (req.getParameter("stream") != null) {
+            return null;
+        }
+        return getCacheKey("users", GraphVersions.getUsersVersion(), params);
+    }
+
+    private static String getCacheKey(String list, long version, String params) {
+        return version == GraphVersions.UNSETTLED ? null : list + ":" + version + ":" + params;
+    }
+
+    // The optional "limit" parameter, between 1 and LIST_LIMIT
+    private static int getLimit(HttpServletRequest req) throws ApiException {
+        String limit = req.getParameter("limit");
+        if (limit == null) {
+            return LIST_LIMIT;
+        }
+        if (limit.isEmpty() || !ValidationUtils.validateId(limit) || limit.length() > 9) {
+            throw new ApiException(400, "invalidLimit", "Invalid limit");
+        }
+        return Math.max(1, Math.min(LIST_LIMIT, Integer.parseInt(limit)));
     }
 
     // A POST request can be used to create a user
@@ -62,13 +123,6 @@ public class UsersServlet extends JsonServlet {
             throw new ApiException(400, "invalidEmail", "Invalid email");
         }
 
-        if (UsersRepository.getUserByLogin(user.login) != null) {
-            throw new ApiException(400, "duplicateLogin", "Duplicate login");
-        }
-        if (UsersRepository.getUserByEmail(user.email) != null) {
-            throw new ApiException(400, "duplicateEmail", "Duplicate email");
-        }
-
         // Explicitly give a fresh id to the user (we need it for next step)
         user.id = UsersRepository.allocateNewId();
 
@@ -83,7 +137,8 @@ public class UsersServlet extends JsonServlet {
         user.blobkey = null;
 
         // Persist the user into the repository
-        UsersRepository.saveUser(user);
+        // The unicity of the login and the email is checked at the same time, in a transaction
+        UsersRepository.createUser(user);
 
         // Create and return a token for the new user
         return TokenUtils.generateToken(user.id);
@@ -0,0 +1,21 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.impl.EntityMemcacheStats;
+
+import java.util.Map;
+
+/**
+ * The statistics of the Memcache layer used by Objectify for the entities annotated with @Cache.
+ * Objectify counts the hits and misses of each kind (User, Message, Follower).
+ */
+public class CacheStats {
+
+    /**
+     * @return the statistics by entity kind, with the hits, the misses and the hit rate
+     */
+    public static Map<String, EntityMemcacheStats.Stat> getEntityCacheStats() {
+        return ObjectifyService.factory().getMemcacheStats().getStats();
+    }
+
+}
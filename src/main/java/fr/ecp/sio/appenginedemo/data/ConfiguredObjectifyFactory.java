@@ -0,0 +1,57 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.Key;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.cache.CacheControl;
+import com.googlecode.objectify.cache.EntityMemcache;
+import com.googlecode.objectify.impl.CacheControlImpl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The factory of Objectify used by our application, see ObjectifyListener.
+ * The lifetimes of the entities in Memcache can be set by kind with the system properties of appengine-web.xml,
+ * e.g. "cache.expirationSeconds.User". The values of the annotations cannot come from a configuration (they are
+ * constants), so the @Cache annotation only decides if a kind is cached, and gives its default lifetime.
+ */
+public class ConfiguredObjectifyFactory extends ObjectifyFactory {
+
+    private static final String PROPERTY_PREFIX = "cache.expirationSeconds.";
+
+    public ConfiguredObjectifyFactory() {
+        // The same Memcache layer as the default one (namespace and statistics), with our lifetimes
+        entityMemcache = new EntityMemcache(MEMCACHE_NAMESPACE, new ConfiguredCacheControl(this), memcacheStats);
+    }
+
+    /**
+     * The lifetime of the property of the kind if it is set, else the one of its @Cache annotation
+     */
+    private static class ConfiguredCacheControl implements CacheControl {
+
+        private final CacheControl annotations;
+        // The configured lifetimes by kind, -1 when the property is not set
+        private final ConcurrentMap<String, Integer> expirations = new ConcurrentHashMap<>();
+
+        ConfiguredCacheControl(ObjectifyFactory factory) {
+            this.annotations = new CacheControlImpl(factory);
+        }
+
+        @Override
+        public Integer getExpirySeconds(Key key) {
+            Integer defaultExpiration = annotations.getExpirySeconds(key);
+            if (defaultExpiration == null) {
+                // Not annotated with @Cache
+                return null;
+            }
+            Integer expiration = expirations.get(key.getKind());
+            if (expiration == null) {
+                expiration = Integer.getInteger(PROPERTY_PREFIX + key.getKind(), -1);
+                expirations.putIfAbsent(key.getKind(), expiration);
+            }
+            return expiration >= 0 ? expiration : defaultExpiration;
+        }
+
+    }
+
+}
@@ -0,0 +1,257 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+import fr.ecp.sio.appenginedemo.model.CounterShard;
+import fr.ecp.sio.appenginedemo.model.Follower;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This is a repository class for the counters of the users (followers, following and messages).
+ * Each counter is sharded: an update goes to a random shard, a read sums all the shards.
+ * The sums are cached in Memcache, and the updates are applied to the cached sums too.
+ * The number of shards is configured with the "counters.shardCount" system property (see appengine-web.xml);
+ * it can be increased but never decreased, or the counts of the removed shards would be lost.
+ * An update is applied after the write it counts (a follow, a message...), in its own transaction: if it fails,
+ * the counter drifts. The "counters" migration (see recountAll()) computes the counters again from the data,
+ * it initializes the counters of the data written before they existed, and repairs such drifts.
+ */
+public class CountersRepository {
+
+    public static final String FOLLOWERS = "followers";
+    public static final String FOLLOWING = "following";
+    public static final String MESSAGES = "messages";
+
+    private static final String[] COUNTERS = {FOLLOWERS, FOLLOWING, MESSAGES};
+
+    private static final int SHARD_COUNT = Integer.getInteger("counters.shardCount", 20);
+
+    private static final MemcacheService MEMCACHE = MemcacheServiceFactory.getMemcacheService("counters");
+    private static final int EXPIRATION_SECONDS = 600;
+
+    // Number of users recounted by each task of the migration
+    private static final int RECOUNT_BATCH_SIZE = 50;
+
+    static {
+        ObjectifyService.register(CounterShard.class);
+        ObjectifyService.register(Follower.class);
+        ObjectifyService.register(Message.class);
+        ObjectifyService.register(User.class);
+    }
+
+    /**
+     * The counters of a user
+     */
+    public static class Counts {
+
+        public long followers;
+        public long following;
+        public long messages;
+
+    }
+
+    /**
+     * Add a value to a counter of a user
+     *
+     * @param userId  id of the user
+     * @param counter FOLLOWERS, FOLLOWING or MESSAGES
+     * @param delta   the value to add (negative to decrement)
+     */
+    public static void increment(final long userId, final String counter, final long delta) {
+        ObjectifyService.ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                incrementShard(userId, counter, delta);
+            }
+        });
+        incrementCached(userId, counter, delta);
+    }
+
+    // Add a value to a random shard of a counter, in the current transaction: a caller that updates the counter
+    // in the transaction of the write it counts then calls incrementCached(), once the transaction is committed
+    static void incrementShard(long userId, String counter, long delta) {
+        Key<CounterShard> key = getShardKey(userId, counter, ThreadLocalRandom.current().nextInt(SHARD_COUNT));
+        CounterShard shard = ObjectifyService.ofy().load().key(key).now();
+        if (shard == null) {
+            shard = new CounterShard();
+            shard.id = key.getName();
+        }
+        shard.count += delta;
+        ObjectifyService.ofy().save().entity(shard).now();
+    }
+
+    // Update the cached sum, if any (nothing happens if it is not in the cache)
+    static void incrementCached(long userId, String counter, long delta) {
+        // Memcache cannot decrement below 0: a counter not recounted yet (see recountAll()) may stay at 0
+        MEMCACHE.increment(getCacheKey(userId, counter), delta);
+    }
+
+    /**
+     * Get all the counters of a user.
+     * This costs one Memcache call, plus one batch get of the shards of the counters missing from the cache.
+     *
+     * @param userId id of the user
+     * @return the counters
+     */
+    public static Counts getCounts(long userId) {
+        List<String> cacheKeys = new ArrayList<>(COUNTERS.length);
+        for (String counter : COUNTERS) {
+            cacheKeys.add(getCacheKey(userId, counter));
+        }
+        Map<String, Object> cached = MEMCACHE.getAll(cacheKeys);
+
+        // The shards of all the counters missing from the cache are read with a single batch get
+        List<Key<CounterShard>> keys = new ArrayList<>();
+        for (String counter : COUNTERS) {
+            if (!cached.containsKey(getCacheKey(userId, counter))) {
+                for (int i = 0; i < SHARD_COUNT; i++) {
+                    keys.add(getShardKey(userId, counter, i));
+                }
+            }
+        }
+        Map<String, Long> values = new HashMap<>();
+        if (!keys.isEmpty()) {
+            for (String counter : COUNTERS) {
+                if (!cached.containsKey(getCacheKey(userId, counter))) {
+                    values.put(counter, 0L);
+                }
+            }
+            Map<Key<CounterShard>, CounterShard> shards = ObjectifyService.ofy().load().keys(keys);
+            for (CounterShard shard : shards.values()) {
+                // The name of the counter is in the id of the shard: "userId:counter:shard"
+                String counter = shard.id.split(":")[1];
+                values.put(counter, values.get(counter) + shard.count);
+            }
+            Map<String, Object> computed = new HashMap<>();
+            for (Map.Entry<String, Long> value : values.entrySet()) {
+                computed.put(getCacheKey(userId, value.getKey()), value.getValue());
+            }
+            // An update between the batch get and this put is missed by the cached value until it expires
+            MEMCACHE.putAll(computed, Expiration.byDeltaSeconds(EXPIRATION_SECONDS), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+
+        Counts counts = new Counts();
+        counts.followers = getValue(userId, FOLLOWERS, cached, values);
+        counts.following = getValue(userId, FOLLOWING, cached, values);
+        counts.messages = getValue(userId, MESSAGES, cached, values);
+        return counts;
+    }
+
+    /**
+     * Delete all the counters of a user
+     *
+     * @param userId id of the user
+     */
+    public static void deleteCounts(long userId) {
+        List<Key<CounterShard>> keys = new ArrayList<>(COUNTERS.length * SHARD_COUNT);
+        List<String> cacheKeys = new ArrayList<>(COUNTERS.length);
+        for (String counter : COUNTERS) {
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                keys.add(getShardKey(userId, counter, i));
+            }
+            cacheKeys.add(getCacheKey(userId, counter));
+        }
+        ObjectifyService.ofy().delete().keys(keys).now();
+        MEMCACHE.deleteAll(cacheKeys);
+    }
+
+    /**
+     * Start the computation of the counters of all the users from their relationships and messages.
+     * The migration runs in the background, one batch of users per task, and can safely be run several times.
+     * The messages are counted with their index on the author: the "messages" migration must have run before.
+     * An update made while the counter of its user is recounted may be missed, the migration is better run
+     * when the application is quiet.
+     */
+    public static void recountAll() {
+        QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(new RecountTask(null)));
+    }
+
+    // Set a counter to the value counted from the data: the difference with the sum of the shards is added to one
+    private static void recount(long userId, String counter, long value) {
+        List<Key<CounterShard>> keys = new ArrayList<>(SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            keys.add(getShardKey(userId, counter, i));
+        }
+        long sum = 0;
+        for (CounterShard shard : ObjectifyService.ofy().load().keys(keys).values()) {
+            sum += shard.count;
+        }
+        if (sum != value) {
+            increment(userId, counter, value - sum);
+        }
+        // The cached sum may have been clamped at 0, it is read again from the shards
+        MEMCACHE.delete(getCacheKey(userId, counter));
+    }
+
+    /**
+     * Recounts the counters of a batch of users, then schedules the next batch
+     */
+    private static class RecountTask implements DeferredTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cursor;
+
+        RecountTask(String cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            Query<User> query = ObjectifyService.ofy().load().type(User.class).limit(RECOUNT_BATCH_SIZE);
+            if (cursor != null) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+            int count = 0;
+            QueryResultIterator<Key<User>> iterator = query.keys().iterator();
+            while (iterator.hasNext()) {
+                Key<User> user = iterator.next();
+                count++;
+                // Keys-only counts, the relationships with a numeric id (not migrated yet) are counted too
+                recount(user.getId(), FOLLOWERS, ObjectifyService.ofy().load().type(Follower.class)
+                        .filter("followedId", user.getId()).count());
+                recount(user.getId(), FOLLOWING, ObjectifyService.ofy().load().type(Follower.class)
+                        .filter("followerId", user.getId()).count());
+                recount(user.getId(), MESSAGES, ObjectifyService.ofy().load().type(Message.class)
+                        .filter("user", user).count());
+            }
+
+            if (count == RECOUNT_BATCH_SIZE) {
+                QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(
+                        new RecountTask(iterator.getCursor().toWebSafeString())));
+            }
+        }
+
+    }
+
+    private static long getValue(long userId, String counter, Map<String, Object> cached, Map<String, Long> values) {
+        Object value = cached.get(getCacheKey(userId, counter));
+        return value != null ? (Long) value : values.get(counter);
+    }
+
+    private static Key<CounterShard> getShardKey(long userId, String counter, int shard) {
+        return Key.create(CounterShard.class, userId + ":" + counter + ":" + shard);
+    }
+
+    private static String getCacheKey(long userId, String counter) {
+        return userId + ":" + counter;
+    }
+
+}
@@ -0,0 +1,266 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+import fr.ecp.sio.appenginedemo.model.Follower;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.TimelineEntry;
+import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.model.UserDeletion;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This is a repository class for the deletion of the data of the users.
+ * A user may have millions of followers or messages, far too many to delete during the request.
+ * The data is deleted in the background, one batch per task and one kind of data (a stage) after the other.
+ * The progress is saved in a UserDeletion entity after each batch, with the cursor of the current stage,
+ * so the deletion resumes where it stopped if a task fails.
+ * A relationship is deleted in the same transaction as the update of the counter of the other user,
+ * so a batch run twice (a task retried before its progress was saved) does not count the deletions twice.
+ */
+public class DeletionsRepository {
+
+    // The stages of a deletion, in order
+    public static final String FOLLOWING = "following";
+    public static final String FOLLOWERS = "followers";
+    public static final String MESSAGES = "messages";
+    public static final String TIMELINE = "timeline";
+    public static final String COUNTERS = "counters";
+    public static final String DONE = "done";
+
+    private static final String[] STAGES = {FOLLOWING, FOLLOWERS, MESSAGES, TIMELINE, COUNTERS, DONE};
+
+    // Maximum number of entities deleted by a task (this is also the Datastore limit for a single delete)
+    private static final int BATCH_SIZE = 500;
+
+    // Number of relationships deleted by a transaction: each one is an entity group, and so is the counter shard
+    // of its other user, while a cross-group transaction spans at most 25 entity groups
+    private static final int RELATIONSHIPS_PER_TRANSACTION = 12;
+
+    static {
+        ObjectifyService.register(UserDeletion.class);
+        ObjectifyService.register(Follower.class);
+        ObjectifyService.register(Message.class);
+        ObjectifyService.register(TimelineEntry.class);
+    }
+
+    /**
+     * Start the deletion of the data of a user (relationships, messages, timeline and counters).
+     * Starting a deletion already running has no effect.
+     *
+     * @param userId id of the deleted user
+     * @return the progress of the deletion
+     */
+    public static UserDeletion startUserDeletion(final long userId) {
+        return ObjectifyService.ofy().transact(new Work<UserDeletion>() {
+            @Override
+            public UserDeletion run() {
+                UserDeletion deletion = getUserDeletion(userId);
+                if (deletion != null) {
+                    return deletion;
+                }
+                deletion = new UserDeletion();
+                deletion.userId = userId;
+                deletion.stage = STAGES[0];
+                deletion.startedAt = new Date();
+                deletion.updatedAt = deletion.startedAt;
+                ObjectifyService.ofy().save().entity(deletion).now();
+                // A transactional task is only enqueued if the transaction commits
+                QueueFactory.getDefaultQueue().add(ObjectifyService.ofy().getTransaction(),
+                        TaskOptions.Builder.withPayload(new DeleteUserTask(userId)));
+                return deletion;
+            }
+        });
+    }
+
+    /**
+     * @param userId id of a deleted user
+     * @return the progress of the deletion of the data of this user, or null if it was never started
+     */
+    public static UserDeletion getUserDeletion(long userId) {
+        return ObjectifyService.ofy().load().type(UserDeletion.class).id(userId).now();
+    }
+
+    private static void enqueue(long userId) {
+        QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(new DeleteUserTask(userId)));
+    }
+
+    // Delete a batch of the current stage, then move to the next stage when the current one is complete
+    private static void deleteBatch(UserDeletion deletion) {
+        long userId = deletion.userId;
+        int count;
+        String cursor;
+        switch (deletion.stage) {
+            case FOLLOWING: {
+                QueryResultIterator<Key<Follower>> iterator = page(ObjectifyService.ofy()
+                        .load()
+                        .type(Follower.class)
+                        .filter("followerId", userId), deletion.cursor).keys().iterator();
+                // The followed users lose a follower
+                count = deleteRelationships(iterator, "followedId", CountersRepository.FOLLOWERS);
+                cursor = iterator.getCursor().toWebSafeString();
+                break;
+            }
+            case FOLLOWERS: {
+                QueryResultIterator<Key<Follower>> iterator = page(ObjectifyService.ofy()
+                        .load()
+                        .type(Follower.class)
+                        .filter("followedId", userId), deletion.cursor).keys().iterator();
+                // The followers follow one user less
+                // The messages of the user left in their timelines are skipped when the timelines are read
+                count = deleteRelationships(iterator, "followerId", CountersRepository.FOLLOWING);
+                cursor = iterator.getCursor().toWebSafeString();
+                break;
+            }
+            case MESSAGES: {
+                QueryResultIterator<Key<Message>> iterator = page(ObjectifyService.ofy()
+                        .load()
+                        .type(Message.class)
+                        .filter("user", Key.create(User.class, userId)), deletion.cursor).keys().iterator();
+                count = deleteKeys(iterator);
+                cursor = iterator.getCursor().toWebSafeString();
+                break;
+            }
+            case TIMELINE: {
+                QueryResultIterator<Key<TimelineEntry>> iterator = page(ObjectifyService.ofy()
+                        .load()
+                        .type(TimelineEntry.class)
+                        .ancestor(TimelinesRepository.getTimelineKey(userId)), deletion.cursor).keys().iterator();
+                count = deleteKeys(iterator);
+                cursor = iterator.getCursor().toWebSafeString();
+                break;
+            }
+            case COUNTERS:
+                CountersRepository.deleteCounts(userId);
+                count = 0;
+                cursor = null;
+                break;
+            default:
+                return;
+        }
+
+        deletion.deletedEntities += count;
+        if (count == BATCH_SIZE) {
+            deletion.cursor = cursor;
+        } else {
+            // This stage is complete
+            deletion.stage = nextStage(deletion.stage);
+            deletion.cursor = null;
+        }
+    }
+
+    private static <T> Query<T> page(Query<T> query, String cursor) {
+        query = query.limit(BATCH_SIZE);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        return query;
+    }
+
+    // Delete a batch of relationships, and decrement the counter of the other user of each one in the same transaction:
+    // a relationship deleted by a previous attempt of the task is not found again, so no counter is decremented twice.
+    // The keys are used as they are, some may still have a numeric id (see UsersRepository.migrateFollowerKeys())
+    private static int deleteRelationships(QueryResultIterator<Key<Follower>> iterator,
+                                           final String otherProperty, final String counter) {
+        List<com.google.appengine.api.datastore.Key> keys = new ArrayList<>();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next().getRaw());
+        }
+        for (int i = 0; i < keys.size(); i += RELATIONSHIPS_PER_TRANSACTION) {
+            final List<com.google.appengine.api.datastore.Key> chunk =
+                    keys.subList(i, Math.min(i + RELATIONSHIPS_PER_TRANSACTION, keys.size()));
+            List<Long> otherIds = ObjectifyService.ofy().transact(new Work<List<Long>>() {
+                @Override
+                public List<Long> run() {
+                    // The query is only eventually consistent, the get tells which relationships still exist
+                    // (the low-level API reads the entities with a numeric id, the Follower class cannot)
+                    Map<com.google.appengine.api.datastore.Key, Entity> existing = DatastoreServiceFactory
+                            .getDatastoreService()
+                            .get(ObjectifyService.ofy().getTransaction(), chunk);
+                    List<Key<Follower>> deleted = new ArrayList<>();
+                    List<Long> otherIds = new ArrayList<>();
+                    for (Entity entity : existing.values()) {
+                        deleted.add(Key.<Follower>create(entity.getKey()));
+                        Object otherId = entity.getProperty(otherProperty);
+                        if (otherId instanceof Long) {
+                            otherIds.add((Long) otherId);
+                            CountersRepository.incrementShard((Long) otherId, counter, -1);
+                        }
+                    }
+                    // Deleted through Objectify, so the cached entities are evicted too
+                    ObjectifyService.ofy().delete().keys(deleted).now();
+                    return otherIds;
+                }
+            });
+            for (long otherId : otherIds) {
+                CountersRepository.incrementCached(otherId, counter, -1);
+                GraphVersions.bumpUser(otherId);
+            }
+        }
+        return keys.size();
+    }
+
+    private static <T> int deleteKeys(QueryResultIterator<Key<T>> iterator) {
+        List<Key<T>> keys = new ArrayList<>();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        ObjectifyService.ofy().delete().keys(keys).now();
+        return keys.size();
+    }
+
+    private static String nextStage(String stage) {
+        for (int i = 0; i < STAGES.length - 1; i++) {
+            if (STAGES[i].equals(stage)) {
+                return STAGES[i + 1];
+            }
+        }
+        return DONE;
+    }
+
+    /**
+     * Deletes one batch of the data of a user, saves the progress, then schedules the next batch
+     */
+    private static class DeleteUserTask implements DeferredTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long userId;
+
+        DeleteUserTask(long userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public void run() {
+            UserDeletion deletion = getUserDeletion(userId);
+            if (deletion == null || DONE.equals(deletion.stage)) {
+                return;
+            }
+            deleteBatch(deletion);
+            deletion.updatedAt = new Date();
+            if (DONE.equals(deletion.stage)) {
+                deletion.finishedAt = deletion.updatedAt;
+            }
+            ObjectifyService.ofy().save().entity(deletion).now();
+            if (deletion.finishedAt == null) {
+                enqueue(userId);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,248 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cmd.Query;
+import fr.ecp.sio.appenginedemo.api.ApiException;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * This is a repository class for the home feed built at read time (fan-out-on-read).
+ * It is the counterpart of the TimelinesRepository, for the users following accounts with too many followers
+ * to push their messages into every timeline.
+ * The timelines of all the followed users are queried concurrently, then merged by date until one page is filled.
+ * A feed merges at most MAX_FOLLOWED timelines: for a user following more accounts, the most recently active ones
+ * are chosen, from the date of their last message kept in Memcache. The others are left out of this feed, the
+ * home timeline (see TimelinesRepository) is the complete view.
+ * The position reached in each timeline is kept in Memcache, the client only gets a short token as its cursor.
+ */
+public class FeedRepository {
+
+    // Maximum number of followed users merged into a feed
+    private static final int MAX_FOLLOWED = 200;
+
+    // Separators of the positions kept for a cursor: "authorId:cursor,authorId:cursor,..."
+    // The web-safe cursors of the Datastore never contain these characters.
+    private static final String CURSOR_SEPARATOR = ",";
+    private static final String AUTHOR_SEPARATOR = ":";
+
+    // The positions of the feeds being read and the date of the last message of each author
+    private static final MemcacheService MEMCACHE = MemcacheServiceFactory.getMemcacheService("feeds");
+    private static final String CURSOR_PREFIX = "cursor:";
+    private static final String LAST_POST_PREFIX = "lastPost:";
+    private static final int CURSOR_EXPIRATION_SECONDS = 60 * 60;
+    private static final int LAST_POST_EXPIRATION_SECONDS = 7 * 24 * 60 * 60;
+
+    static {
+        ObjectifyService.register(Message.class);
+    }
+
+    /**
+     * Get the messages of the users followed by a user, most recent first
+     *
+     * @param id     id of the reader of the feed
+     * @param limit  number of results to return
+     * @param cursor cursor of a previous page, pointing to the position reached in each timeline
+     * @return a MessagesList
+     * @throws ApiException if the cursor is unknown or expired
+     */
+    public static MessagesRepository.MessagesList getMergedFeed(long id, int limit, String cursor) throws ApiException {
+        // The next pages keep the authors chosen for the first one
+        Map<Long, String> positions;
+        if (cursor == null) {
+            positions = new LinkedHashMap<>();
+            for (long authorId : selectAuthors(id)) {
+                positions.put(authorId, null);
+            }
+        } else {
+            String stored = (String) MEMCACHE.get(CURSOR_PREFIX + cursor);
+            if (stored == null) {
+                throw new ApiException(400, "invalidCursor", "Unknown or expired feed cursor");
+            }
+            positions = parsePositions(stored);
+        }
+
+        // First, start the query of every timeline, without waiting for any result.
+        // The Datastore runs them in parallel, the results are only awaited when iterating.
+        List<AuthorStream> streams = new ArrayList<>();
+        for (long authorId : positions.keySet()) {
+            String position = positions.get(authorId);
+            if (position != null && position.isEmpty()) {
+                // This timeline was already read until its end
+                streams.add(new AuthorStream(authorId, null));
+                continue;
+            }
+            // A single page never needs more than "limit" messages from the same author
+            Query<Message> query = ObjectifyService.ofy()
+                    .load()
+                    .type(Message.class)
+                    .filter("user", Key.create(User.class, authorId))
+                    .order("-date")
+                    .limit(limit)
+                    .chunk(limit);
+            if (position != null) {
+                query = query.startAt(Cursor.fromWebSafeString(position));
+            }
+            streams.add(new AuthorStream(authorId, query.iterator()));
+        }
+
+        // Then, k-way merge the streams with a heap on the date of their next message
+        PriorityQueue<AuthorStream> heap = new PriorityQueue<>(Math.max(1, streams.size()), NEWEST_FIRST);
+        for (AuthorStream stream : streams) {
+            if (stream.advance()) {
+                heap.add(stream);
+            }
+        }
+        List<Message> results = new ArrayList<>(limit);
+        while (results.size() < limit && !heap.isEmpty()) {
+            AuthorStream stream = heap.poll();
+            results.add(stream.head);
+            if (stream.advance()) {
+                heap.add(stream);
+            }
+        }
+
+        return new MessagesRepository.MessagesList(results, saveCursor(streams, limit));
+    }
+
+    /**
+     * Remember the date of the last message of an author, to choose the timelines merged into a feed
+     *
+     * @param authorId id of the author
+     * @param date     date of the new message
+     */
+    static void recordPost(long authorId, Date date) {
+        MEMCACHE.put(LAST_POST_PREFIX + authorId, date.getTime(),
+                Expiration.byDeltaSeconds(LAST_POST_EXPIRATION_SECONDS));
+    }
+
+    // The followed users merged into the feed, at most MAX_FOLLOWED, the most recently active first.
+    // An author without a known last message (none in the last days, or evicted from Memcache) comes last.
+    private static List<Long> selectAuthors(long id) {
+        List<Long> followed = UsersRepository.getFollowedIds(id, Integer.MAX_VALUE);
+        if (followed.size() <= MAX_FOLLOWED) {
+            return followed;
+        }
+        List<String> keys = new ArrayList<>(followed.size());
+        for (long authorId : followed) {
+            keys.add(LAST_POST_PREFIX + authorId);
+        }
+        final Map<String, Object> lastPosts = MEMCACHE.getAll(keys);
+        List<Long> authors = new ArrayList<>(followed);
+        Collections.sort(authors, new Comparator<Long>() {
+            @Override
+            public int compare(Long a1, Long a2) {
+                return Long.compare(getLastPost(a2), getLastPost(a1));
+            }
+
+            private long getLastPost(long authorId) {
+                Object date = lastPosts.get(LAST_POST_PREFIX + authorId);
+                return date != null ? (Long) date : 0;
+            }
+        });
+        return authors.subList(0, MAX_FOLLOWED);
+    }
+
+    // Newest messages first, ties are broken by id to keep a stable order across pages
+    private static final Comparator<AuthorStream> NEWEST_FIRST = new Comparator<AuthorStream>() {
+        @Override
+        public int compare(AuthorStream s1, AuthorStream s2) {
+            int result = s2.head.date.compareTo(s1.head.date);
+            if (result == 0) {
+                result = s2.head.id.compareTo(s1.head.id);
+            }
+            return result;
+        }
+    };
+
+    private static Map<Long, String> parsePositions(String stored) {
+        Map<Long, String> positions = new LinkedHashMap<>();
+        if (!stored.isEmpty()) {
+            for (String part : stored.split(CURSOR_SEPARATOR)) {
+                String[] position = part.split(AUTHOR_SEPARATOR, 2);
+                positions.put(Long.parseLong(position[0]), position[1]);
+            }
+        }
+        return positions;
+    }
+
+    // Store the positions reached in the timelines under a new token, returns null when all the timelines
+    // have been read until their end
+    private static String saveCursor(List<AuthorStream> streams, int limit) {
+        StringBuilder sb = new StringBuilder();
+        boolean hasMore = false;
+        for (AuthorStream stream : streams) {
+            String position = stream.getPosition(limit);
+            hasMore |= !position.isEmpty();
+            if (sb.length() > 0) {
+                sb.append(CURSOR_SEPARATOR);
+            }
+            sb.append(stream.authorId).append(AUTHOR_SEPARATOR).append(position);
+        }
+        if (!hasMore) {
+            return null;
+        }
+        String token = UUID.randomUUID().toString();
+        MEMCACHE.put(CURSOR_PREFIX + token, sb.toString(), Expiration.byDeltaSeconds(CURSOR_EXPIRATION_SECONDS));
+        return token;
+    }
+
+    /**
+     * The timeline of one author, with its next message (head) and the position of this message
+     */
+    private static class AuthorStream {
+
+        final long authorId;
+        final QueryResultIterator<Message> iterator;
+        Message head;
+        Cursor headCursor;
+        int fetched;
+
+        AuthorStream(long authorId, QueryResultIterator<Message> iterator) {
+            this.authorId = authorId;
+            this.iterator = iterator;
+        }
+
+        // Move to the next message of the timeline, returns false at the end
+        boolean advance() {
+            head = null;
+            if (iterator == null || !iterator.hasNext()) {
+                return false;
+            }
+            // The cursor before next() points to the message itself, so an unused head is read again on the next page
+            headCursor = iterator.getCursor();
+            head = iterator.next();
+            fetched++;
+            return true;
+        }
+
+        // The web-safe cursor to resume this timeline, or an empty string if it was read until its end
+        String getPosition(int limit) {
+            if (head != null) {
+                return headCursor.toWebSafeString();
+            }
+            if (iterator == null || fetched < limit) {
+                return "";
+            }
+            return iterator.getCursor().toWebSafeString();
+        }
+
+    }
+
+}
@@ -0,0 +1,358 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import fr.ecp.sio.appenginedemo.model.Follower;
+import fr.ecp.sio.appenginedemo.utils.LruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An in-process index of the follow relationships, for the lists and the intersections of followed users.
+ * For each user, the ids of the followed users and of the followers are kept in sorted arrays of primitive longs:
+ * 8 bytes per relationship, without any boxing. Membership is a binary search, intersections are a merge.
+ * The arrays of a user are loaded lazily, with a keys-only query, and patched in place on each follow or unfollow.
+ * Like the cache of the users, each instance has its own index: a relationship changed by another instance
+ * is only seen when the arrays expire, and the keys-only query is only eventually consistent.
+ * So no answer of the index is reliable, a check that matters (authorization) reads the relationship by key
+ * and uses the index as a hint, corrected when the Datastore disagrees: see UsersRepository.isFollowerOf().
+ * The arrays of a user whose relationships changed during the load, or a moment before, are returned but not kept.
+ * The memory is bounded by the total number of ids per direction, the least recently used arrays are evicted first.
+ * A user with more than MAX_IDS relationships keeps a partial array of MAX_IDS of them, so it is not queried
+ * again on each call: its lists are truncated, and a missing id in it tells nothing.
+ * Relationships with a numeric id (not migrated yet, see UsersRepository.migrateFollowerKeys()) are read
+ * from their properties. The source of the relationships can be replaced, see Loader.
+ */
+public class FollowGraph {
+
+    private static final Adjacency EMPTY = new Adjacency(new long[0], false);
+
+    // Maximum number of users per direction, and lifetime of their arrays
+    private static final int MAX_USERS = 100000;
+    private static final long TTL_MILLIS = 60 * 1000;
+
+    // Maximum length of an array, the relationships of a user beyond it are not loaded
+    private static final int MAX_IDS = 20000;
+
+    // Memory budget of each direction, in bytes (about 2M relationships)
+    private static final long MAX_BYTES = 16L * 1024 * 1024;
+
+    // Number of keys fetched at once when loading the arrays of a user
+    private static final int LOAD_CHUNK_SIZE = 1000;
+
+    // Delay after a change during which a load may not show it yet
+    private static final long SETTLE_MILLIS = 10 * 1000;
+
+    // Estimated memory used by a cached array besides its elements: map entry, boxed key, cache entries and array header
+    private static final long ENTRY_OVERHEAD_BYTES = 112;
+
+    private static final LruCache.Weigher<Adjacency> WEIGHER = new LruCache.Weigher<Adjacency>() {
+        @Override
+        public long weigh(Adjacency value) {
+            return ENTRY_OVERHEAD_BYTES + 8L * value.ids.length;
+        }
+    };
+
+    private static final LruCache<Long, Adjacency> FOLLOWING = new LruCache<>(MAX_USERS, TTL_MILLIS, MAX_BYTES, WEIGHER);
+    private static final LruCache<Long, Adjacency> FOLLOWERS = new LruCache<>(MAX_USERS, TTL_MILLIS, MAX_BYTES, WEIGHER);
+
+    // The users whose relationships changed a moment ago, their loads are not cached
+    private static final LruCache<Long, Boolean> CHANGED = new LruCache<>(MAX_USERS, SETTLE_MILLIS);
+
+    // The updates of the arrays are copy-on-write, this lock only serializes the writers (patches and loads)
+    private static final Object WRITE_LOCK = new Object();
+
+    /**
+     * Reads the relationships of a user, from the Follower entities of the Datastore by default
+     */
+    public interface Loader {
+
+        /**
+         * @param id        id of a user
+         * @param following true for the users followed by this user, false for its followers
+         * @param limit     maximum number of ids to return
+         * @return the ids, in any order
+         */
+        long[] load(long id, boolean following, int limit);
+
+    }
+
+    private static volatile Loader loader = new DatastoreLoader();
+
+    // The sorted ids of a direction of a user, partial if the user has more than MAX_IDS relationships
+    private static class Adjacency {
+
+        final long[] ids;
+        final boolean partial;
+
+        Adjacency(long[] ids, boolean partial) {
+            this.ids = ids;
+            this.partial = partial;
+        }
+
+    }
+
+    /**
+     * The answer of the index, which may be stale: it must be confirmed with the Datastore
+     * when it matters, see UsersRepository.isFollowerOf()
+     *
+     * @param followerId id of the follower
+     * @param followedId id of the followed
+     * @return false if the index does not hold this relationship, true if it holds it or cannot tell
+     */
+    public static boolean mayFollow(long followerId, long followedId) {
+        Adjacency following = get(FOLLOWING, followerId, true);
+        return following.partial || Arrays.binarySearch(following.ids, followedId) >= 0;
+    }
+
+    /**
+     * @param id id of a user
+     * @return the sorted ids of the users followed by this user (at most MAX_IDS), the array must not be modified
+     */
+    public static long[] getFollowing(long id) {
+        return get(FOLLOWING, id, true).ids;
+    }
+
+    /**
+     * @param id id of a user
+     * @return the sorted ids of the followers of this user (at most MAX_IDS), the array must not be modified
+     */
+    public static long[] getFollowers(long id) {
+        return get(FOLLOWERS, id, false).ids;
+    }
+
+    private static Adjacency get(LruCache<Long, Adjacency> cache, long id, boolean followed) {
+        Adjacency adjacency = cache.get(id);
+        if (adjacency == null) {
+            adjacency = load(id, followed);
+            synchronized (WRITE_LOCK) {
+                // Checked under the lock: a patch applied later finds this array and updates it
+                if (CHANGED.peek(id) == null) {
+                    cache.put(id, adjacency);
+                }
+            }
+        }
+        return adjacency;
+    }
+
+    /**
+     * @param id id of a user
+     * @return the sorted ids of the users that follow this user and are followed back
+     */
+    public static long[] getMutualFollows(long id) {
+        return intersect(getFollowing(id), getFollowers(id));
+    }
+
+    /**
+     * @param id1 id of a user
+     * @param id2 id of another user
+     * @return the sorted ids of the users followed by both users
+     */
+    public static long[] getCommonFollowing(long id1, long id2) {
+        return intersect(getFollowing(id1), getFollowing(id2));
+    }
+
+    /**
+     * Intersect two sorted arrays by merging them, in O(n + m)
+     *
+     * @param a a sorted array
+     * @param b another sorted array
+     * @return the sorted values present in both arrays
+     */
+    public static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    // Called after a relationship is saved or deleted, only the arrays already loaded are patched
+    static void setFollowing(long followerId, long followedId, boolean followed) {
+        synchronized (WRITE_LOCK) {
+            // The loads in progress started before this change, they must not be cached
+            CHANGED.put(followerId, true);
+            CHANGED.put(followedId, true);
+            update(FOLLOWING, followerId, followedId, followed);
+            update(FOLLOWERS, followedId, followerId, followed);
+        }
+    }
+
+    // Called with the state of a relationship just read from the Datastore: the arrays already loaded are corrected
+    // if they disagree (a change made by another instance, or missed by a load)
+    static void confirm(long followerId, long followedId, boolean followed) {
+        synchronized (WRITE_LOCK) {
+            update(FOLLOWING, followerId, followedId, followed);
+            update(FOLLOWERS, followedId, followerId, followed);
+        }
+    }
+
+    // Called when a user is deleted: forget the user, and remove it from the arrays of its known neighbours
+    static void removeUser(long id) {
+        synchronized (WRITE_LOCK) {
+            CHANGED.put(id, true);
+            Adjacency following = FOLLOWING.peek(id);
+            if (following != null) {
+                for (long followedId : following.ids) {
+                    CHANGED.put(followedId, true);
+                    update(FOLLOWERS, followedId, id, false);
+                }
+            }
+            Adjacency followers = FOLLOWERS.peek(id);
+            if (followers != null) {
+                for (long followerId : followers.ids) {
+                    CHANGED.put(followerId, true);
+                    update(FOLLOWING, followerId, id, false);
+                }
+            }
+            FOLLOWING.remove(id);
+            FOLLOWERS.remove(id);
+        }
+    }
+
+    private static void update(LruCache<Long, Adjacency> cache, long id, long otherId, boolean add) {
+        Adjacency adjacency = cache.peek(id);
+        if (adjacency == null) {
+            // Not loaded, the next load will read the relationship from the Datastore
+            return;
+        }
+        long[] ids = adjacency.ids;
+        int index = Arrays.binarySearch(ids, otherId);
+        Adjacency updated;
+        if (add && index < 0) {
+            if (ids.length == MAX_IDS) {
+                // The array cannot grow, it only becomes partial (a missing id then tells nothing)
+                if (!adjacency.partial) {
+                    cache.put(id, new Adjacency(ids, true));
+                }
+                return;
+            }
+            int insertion = -index - 1;
+            long[] inserted = new long[ids.length + 1];
+            System.arraycopy(ids, 0, inserted, 0, insertion);
+            inserted[insertion] = otherId;
+            System.arraycopy(ids, insertion, inserted, insertion + 1, ids.length - insertion);
+            updated = new Adjacency(inserted, adjacency.partial);
+        } else if (!add && index >= 0) {
+            long[] removed = new long[ids.length - 1];
+            System.arraycopy(ids, 0, removed, 0, index);
+            System.arraycopy(ids, index + 1, removed, index, ids.length - index - 1);
+            updated = new Adjacency(removed, adjacency.partial);
+        } else {
+            return;
+        }
+        // The readers keep using the previous array, which is never modified
+        cache.put(id, updated);
+    }
+
+    /**
+     * Replace the source of the relationships, and empty the index (the benchmarks use a synthetic graph)
+     *
+     * @param loader the new source, or null for the Datastore
+     */
+    public static void setLoader(Loader loader) {
+        synchronized (WRITE_LOCK) {
+            FollowGraph.loader = loader != null ? loader : new DatastoreLoader();
+            FOLLOWING.clear();
+            FOLLOWERS.clear();
+        }
+    }
+
+    // Read the ids of a direction, at most MAX_IDS of them
+    private static Adjacency load(long id, boolean followed) {
+        // One more id than the array can hold tells that it is partial
+        long[] ids = loader.load(id, followed, MAX_IDS + 1);
+        boolean partial = ids.length > MAX_IDS;
+        if (ids.length == 0) {
+            return EMPTY;
+        }
+        ids = Arrays.copyOf(ids, Math.min(ids.length, MAX_IDS));
+        Arrays.sort(ids);
+        return new Adjacency(ids, partial);
+    }
+
+    // Read the ids of a direction from the keys of the Follower entities ("followerId:followedId")
+    private static class DatastoreLoader implements Loader {
+
+        @Override
+        public long[] load(long id, boolean following, int limit) {
+            long[] ids = new long[16];
+            int n = 0;
+            List<com.google.appengine.api.datastore.Key> legacyKeys = new ArrayList<>();
+            for (Key<Follower> key : ObjectifyService.ofy()
+                    .load()
+                    .type(Follower.class)
+                    .filter(following ? "followerId" : "followedId", id)
+                    .limit(limit)
+                    .chunk(LOAD_CHUNK_SIZE)
+                    .keys()) {
+                String name = key.getName();
+                if (name == null) {
+                    // A numeric id tells nothing, the other user is read from the properties below
+                    legacyKeys.add(key.getRaw());
+                    continue;
+                }
+                int separator = name.indexOf(':');
+                long otherId = following
+                        ? Long.parseLong(name.substring(separator + 1))
+                        : Long.parseLong(name.substring(0, separator));
+                if (n == ids.length) {
+                    ids = Arrays.copyOf(ids, n * 2);
+                }
+                ids[n++] = otherId;
+            }
+            if (!legacyKeys.isEmpty()) {
+                // These entities cannot be loaded into the Follower class, the low-level API reads them in a batch get
+                String otherProperty = following ? "followedId" : "followerId";
+                for (Entity entity : DatastoreServiceFactory.getDatastoreService().get(legacyKeys).values()) {
+                    Object otherId = entity.getProperty(otherProperty);
+                    if (otherId instanceof Long) {
+                        if (n == ids.length) {
+                            ids = Arrays.copyOf(ids, n * 2);
+                        }
+                        ids[n++] = (Long) otherId;
+                    }
+                }
+            }
+            return Arrays.copyOf(ids, n);
+        }
+
+    }
+
+    /**
+     * @return the number of relationships currently held in memory, counted once per direction
+     */
+    public static long getEdgeCount() {
+        long count = 0;
+        for (Adjacency adjacency : FOLLOWING.values()) {
+            count += adjacency.ids.length;
+        }
+        for (Adjacency adjacency : FOLLOWERS.values()) {
+            count += adjacency.ids.length;
+        }
+        return count;
+    }
+
+    /**
+     * @return an estimation of the memory used by the index, in bytes (at most twice MAX_BYTES)
+     */
+    public static long getMemoryFootprint() {
+        return FOLLOWING.getWeight() + FOLLOWERS.getWeight();
+    }
+
+}
@@ -0,0 +1,81 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Version stamps of the social graph, stored in Memcache.
+ * Each user has a stamp, bumped when the relationships of this user change, and a global stamp is bumped when any user changes.
+ * The cached responses are keyed with these stamps: bumping a stamp makes all the related responses unreachable
+ * at once, without looking for them. The old entries just expire.
+ * The lists are read with queries that are not strongly consistent: just after a bump, they may not show the change yet.
+ * During this window, the getters return UNSETTLED instead of the new stamp, so such a stale list is never cached.
+ */
+public class GraphVersions {
+
+    private static final MemcacheService MEMCACHE = MemcacheServiceFactory.getMemcacheService("graphVersions");
+
+    private static final String USERS_KEY = "users";
+
+    // Returned instead of a stamp while the indexes may still be behind the last change
+    public static final long UNSETTLED = -1;
+
+    // Marker set for a while after each bump, longer than the usual propagation delay of the indexes
+    private static final String CHANGED_PREFIX = "changed:";
+    private static final int SETTLE_SECONDS = 10;
+
+    /**
+     * @param userId id of a user
+     * @return the current version of the relationships of this user, or UNSETTLED if they changed a moment ago
+     */
+    public static long getUserVersion(long userId) {
+        return get(userKey(userId));
+    }
+
+    /**
+     * @return the current version of the list of all the users, or UNSETTLED if it changed a moment ago
+     */
+    public static long getUsersVersion() {
+        return get(USERS_KEY);
+    }
+
+    // Called when a user follows or unfollows someone, or is followed or unfollowed
+    public static void bumpUser(long userId) {
+        bump(userKey(userId));
+    }
+
+    // Called when a user is created, modified or deleted
+    public static void bumpUsers() {
+        bump(USERS_KEY);
+    }
+
+    private static String userKey(long userId) {
+        return "user:" + userId;
+    }
+
+    // A stamp evicted from Memcache must not restart from a value that was already used,
+    // so a missing stamp is initialized with the current time, which is always greater than the previous stamps
+    private static long get(String key) {
+        // The stamp and the marker of a recent change, in a single round-trip
+        Map<String, Object> values = MEMCACHE.getAll(Arrays.asList(key, CHANGED_PREFIX + key));
+        if (values.containsKey(CHANGED_PREFIX + key)) {
+            return UNSETTLED;
+        }
+        Long version = (Long) values.get(key);
+        if (version == null) {
+            MEMCACHE.put(key, System.currentTimeMillis(), null, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            version = (Long) MEMCACHE.get(key);
+        }
+        return version == null ? System.currentTimeMillis() : version;
+    }
+
+    private static void bump(String key) {
+        MEMCACHE.put(CHANGED_PREFIX + key, true, Expiration.byDeltaSeconds(SETTLE_SECONDS));
+        MEMCACHE.increment(key, 1L, System.currentTimeMillis());
+    }
+
+}
@@ -0,0 +1,161 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import com.googlecode.objectify.Key;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A pool of pre-allocated ids for an entity kind.
+ * Allocating an id is a Datastore call, so the pool reserves the ids by blocks and hands them out locally.
+ * When the current block runs low, the next block is requested asynchronously, so it is usually ready when needed.
+ * The pool is thread-safe and lock-free: the ids are taken with atomic increments.
+ * The size of the blocks is configured with the "idPool.batchSize" system property (see appengine-web.xml).
+ */
+public class IdPool {
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static final ConcurrentMap<String, IdPool> POOLS = new ConcurrentHashMap<>();
+
+    private final String kind;
+    private final long batchSize;
+    private final long lowWater;
+    private final AsyncDatastoreService datastore = DatastoreServiceFactory.getAsyncDatastoreService();
+
+    // The block the ids are taken from, and the blocks already allocated but not used yet
+    private final AtomicReference<Block> current = new AtomicReference<>(new Block(1, 0));
+    private final ConcurrentLinkedQueue<Block> spares = new ConcurrentLinkedQueue<>();
+    // The allocation of the next block, while it is running
+    private final AtomicReference<Future<KeyRange>> refill = new AtomicReference<>();
+
+    private final AtomicLong allocatedIds = new AtomicLong();
+    private final AtomicLong allocatedBlocks = new AtomicLong();
+    private final AtomicLong exhaustions = new AtomicLong();
+
+    /**
+     * @param kind      the kind of the entities
+     * @param batchSize the number of ids reserved at once
+     */
+    public IdPool(String kind, long batchSize) {
+        this.kind = kind;
+        this.batchSize = batchSize;
+        this.lowWater = Math.max(1, batchSize / 4);
+    }
+
+    /**
+     * @param clazz an entity class
+     * @return the shared pool of ids for this entity class
+     */
+    public static IdPool forKind(Class<?> clazz) {
+        String kind = Key.getKind(clazz);
+        IdPool pool = POOLS.get(kind);
+        if (pool == null) {
+            POOLS.putIfAbsent(kind, new IdPool(kind, Integer.getInteger("idPool.batchSize", DEFAULT_BATCH_SIZE)));
+            pool = POOLS.get(kind);
+        }
+        return pool;
+    }
+
+    // All the pools, by kind, exposed for monitoring
+    public static Map<String, IdPool> getPools() {
+        return POOLS;
+    }
+
+    /**
+     * @return a new id, never returned before for this kind
+     */
+    public long nextId() {
+        while (true) {
+            Block block = current.get();
+            long id = block.next.getAndIncrement();
+            if (id <= block.end) {
+                if (block.end - id == lowWater) {
+                    // The block runs low, request the next one now
+                    startRefill();
+                }
+                allocatedIds.incrementAndGet();
+                return id;
+            }
+            // The block is used up, switch to the next one
+            Block spare = spares.poll();
+            if (spare == null) {
+                spare = awaitRefill();
+            }
+            if (!current.compareAndSet(block, spare)) {
+                // Another thread already switched, keep our block for later
+                spares.offer(spare);
+            }
+        }
+    }
+
+    private void startRefill() {
+        if (refill.get() == null && spares.isEmpty()) {
+            // In the unlikely case of two concurrent refills, the range of the second one is simply never used
+            refill.compareAndSet(null, datastore.allocateIds(kind, batchSize));
+        }
+    }
+
+    // Wait for the running refill, or allocate a block synchronously if there is none (the pool is exhausted)
+    private Block awaitRefill() {
+        Future<KeyRange> future = refill.getAndSet(null);
+        if (future == null || !future.isDone()) {
+            exhaustions.incrementAndGet();
+        }
+        if (future == null) {
+            future = datastore.allocateIds(kind, batchSize);
+        }
+        return toBlock(future);
+    }
+
+    private Block toBlock(Future<KeyRange> future) {
+        try {
+            KeyRange range = future.get();
+            allocatedBlocks.incrementAndGet();
+            return new Block(range.getStart().getId(), range.getEnd().getId());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Id allocation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Id allocation failed for " + kind, e.getCause());
+        }
+    }
+
+    public long getAllocatedIds() {
+        return allocatedIds.get();
+    }
+
+    public long getAllocatedBlocks() {
+        return allocatedBlocks.get();
+    }
+
+    // The number of times an id was requested while no block was ready
+    public long getExhaustions() {
+        return exhaustions.get();
+    }
+
+    /**
+     * A range of ids, from next to end (inclusive)
+     */
+    private static class Block {
+
+        final AtomicLong next;
+        final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+
+    }
+
+}
@@ -1,8 +1,17 @@
 package fr.ecp.sio.appenginedemo.data;
 
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cmd.Query;
 import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -36,34 +45,130 @@ public class MessagesRepository {
                 .list();
     }
 
-    public static List<Message> getMessagesFrom(long id) {
-        // Same as above, with an author id, returns multiple results as a list
-        List<Message> msglist = getMessages();
-        List<Message> returnlist = null;
+    /**
+     * Get the messages of an author, most recent first.
+     * The query uses the (user, -date) composite index, so only the messages of this author are read.
+     *
+     * @param id     id of the author
+     * @param limit  number of results to return
+     * @param cursor position to start from in the results
+     * @return a MessagesList
+     */
+    public static MessagesList getMessagesFrom(long id, int limit, String cursor) {
+        // Query parameterization: filter on the key of the author, newest messages first
+        Query<Message> query = ObjectifyService.ofy()
+                .load()
+                .type(Message.class)
+                .filter("user", Key.create(User.class, id))
+                .order("-date")
+                .limit(limit);
 
-        for (Message msg : msglist) {
-            if (msg.user.get().id == id) {
-                returnlist.add(msg);
-            }
+        // If the cursor is set, restart from there
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+
+        List<Message> results = new ArrayList<>();
+        QueryResultIterator<Message> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            results.add(iterator.next());
+        }
+
+        // A full page means there may be more results: generate a cursor to continue from here
+        String curs = null;
+        if (results.size() == limit) {
+            curs = iterator.getCursor().toWebSafeString();
         }
-        return returnlist;
+
+        return new MessagesList(results, curs);
     }
 
     public static void saveMessage(Message message) {
+        // A message without id is a new one, it must be pushed to the followers of its author
+        boolean isNew = message.id == null;
         // Persisting an entity is just a save() query
         message.id = ObjectifyService.ofy()
                 .save()
                 .entity(message)
                 .now()
                 .getId();
+        if (isNew) {
+            TimelinesRepository.fanOut(message);
+            CountersRepository.increment(message.user.getKey().getId(), CountersRepository.MESSAGES, 1);
+            FeedRepository.recordPost(message.user.getKey().getId(), message.date);
+        }
     }
 
     public static void deleteMessage(long id) {
+        Message message = getMessage(id);
+        if (message == null) {
+            return;
+        }
         ObjectifyService.ofy()
                 .delete()
                 .type(Message.class)
                 .id(id)
                 .now();
+        CountersRepository.increment(message.user.getKey().getId(), CountersRepository.MESSAGES, -1);
+    }
+
+    /**
+     * Start the rewrite of the existing messages, so that their author and date are indexed.
+     * The Datastore only indexes a property when an entity is written: the messages saved before these properties
+     * had the @Index annotation are missing from the queries on the author (getMessagesFrom(), feeds, backfills).
+     * The migration runs in the background, one batch per task, and can safely be run several times.
+     */
+    public static void migrateMessageIndexes() {
+        QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(new ResaveMessagesTask(null)));
+    }
+
+    /**
+     * Saves again a batch of messages, with the indexes of the current model class, then schedules the next batch
+     */
+    private static class ResaveMessagesTask implements DeferredTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int BATCH_SIZE = 200;
+
+        private final String cursor;
+
+        ResaveMessagesTask(String cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            // A query on the kind only needs the built-in index of the keys, so it finds every message
+            Query<Message> query = ObjectifyService.ofy().load().type(Message.class).limit(BATCH_SIZE);
+            if (cursor != null) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+            List<Message> messages = new ArrayList<>();
+            QueryResultIterator<Message> iterator = query.iterator();
+            while (iterator.hasNext()) {
+                messages.add(iterator.next());
+            }
+            ObjectifyService.ofy().save().entities(messages).now();
+
+            if (messages.size() == BATCH_SIZE) {
+                QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(
+                        new ResaveMessagesTask(iterator.getCursor().toWebSafeString())));
+            }
+        }
+
+    }
+
+    public static class MessagesList {
+
+        public final List<Message> messages;
+        public final String cursor;
+
+        public MessagesList(List<Message> messages, String cursor) {
+            this.messages = messages;
+            this.cursor = cursor;
+        }
+
     }
 
-}
\ No newline at end of file
+}
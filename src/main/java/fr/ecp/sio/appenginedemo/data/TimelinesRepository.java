@@ -0,0 +1,308 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cmd.Query;
+import fr.ecp.sio.appenginedemo.model.Follower;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.Timeline;
+import fr.ecp.sio.appenginedemo.model.TimelineEntry;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This is a repository class for the home timelines (fan-out-on-write).
+ * When a message is posted, its id is pushed into the timeline of every follower of the author.
+ * Reading the home feed of a user is then a single paginated query, whatever the number of followed users.
+ * The writes are done in the background by the Task Queue, so posting a message stays fast.
+ * Each timeline is its own entity group (see Timeline), apart from the profile of its owner.
+ */
+public class TimelinesRepository {
+
+    // Maximum number of entities per batch write (this is also the Datastore limit for a single put)
+    private static final int BATCH_SIZE = 500;
+
+    // Number of recent messages copied into a timeline when a user starts following someone
+    private static final int BACKFILL_SIZE = 50;
+
+    static {
+        ObjectifyService.register(Timeline.class);
+        ObjectifyService.register(TimelineEntry.class);
+        ObjectifyService.register(Message.class);
+        ObjectifyService.register(Follower.class);
+    }
+
+    /**
+     * Get the home timeline of a user, most recent messages first
+     *
+     * @param id     id of the owner of the timeline
+     * @param limit  number of results to return
+     * @param cursor position to start from in the results
+     * @return a MessagesList
+     */
+    public static MessagesRepository.MessagesList getTimeline(long id, int limit, String cursor) {
+        // A single ancestor query, strongly consistent and bounded by the limit
+        Query<TimelineEntry> query = ObjectifyService.ofy()
+                .load()
+                .type(TimelineEntry.class)
+                .ancestor(getTimelineKey(id))
+                .order("-date")
+                .limit(limit);
+
+        // If the cursor is set, restart from there
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+
+        List<Long> ids = new ArrayList<>();
+        QueryResultIterator<TimelineEntry> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().messageId);
+        }
+
+        String curs = null;
+        if (ids.size() == limit) {
+            curs = iterator.getCursor().toWebSafeString();
+        }
+
+        // Then load all the messages at once, keeping the order of the timeline
+        Map<Long, Message> messages = ObjectifyService.ofy()
+                .load()
+                .type(Message.class)
+                .ids(ids);
+        List<Message> results = new ArrayList<>(ids.size());
+        for (Long messageId : ids) {
+            Message message = messages.get(messageId);
+            // A deleted message may still be referenced by a timeline, just skip it
+            if (message != null) {
+                results.add(message);
+            }
+        }
+
+        return new MessagesRepository.MessagesList(results, curs);
+    }
+
+    /**
+     * Schedule the push of a new message into the timelines of the followers of its author
+     *
+     * @param message a saved message
+     */
+    public static void fanOut(Message message) {
+        enqueue(new FanOutTask(message.user.getKey().getId(), message.id, message.date));
+    }
+
+    /**
+     * Schedule the copy of the recent messages of a user into the timeline of a new follower
+     *
+     * @param followerId id of the follower
+     * @param followedId id of the followed
+     */
+    public static void backfill(long followerId, long followedId) {
+        enqueue(new BackfillTask(followerId, followedId));
+    }
+
+    /**
+     * Schedule the removal of the messages of a user from the timeline of a former follower
+     *
+     * @param followerId id of the former follower
+     * @param followedId id of the unfollowed user
+     */
+    public static void prune(long followerId, long followedId) {
+        enqueue(new PruneTask(followerId, followedId));
+    }
+
+    /**
+     * @param ownerId id of the owner of a timeline
+     * @return the key of the root of the entries of this timeline
+     */
+    static Key<Timeline> getTimelineKey(long ownerId) {
+        return Key.create(Timeline.class, ownerId);
+    }
+
+    /**
+     * Start the move of the entries stored under the User entities (before the Timeline roots) to their timeline.
+     * The migration runs in the background, one batch per task, and can safely be run several times.
+     */
+    public static void migrateTimelines() {
+        enqueue(new MoveEntriesTask(null));
+    }
+
+    private static void enqueue(DeferredTask task) {
+        QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(task));
+    }
+
+    private static TimelineEntry createEntry(long ownerId, long authorId, long messageId, Date date) {
+        TimelineEntry entry = new TimelineEntry();
+        entry.timeline = getTimelineKey(ownerId);
+        entry.messageId = messageId;
+        entry.authorId = authorId;
+        entry.date = date;
+        return entry;
+    }
+
+    /**
+     * Pushes a message into the timelines of a page of followers of the author, then schedules the next page.
+     * Each task writes a single batch, so a large audience never makes a task time out, and a retried task
+     * only rewrites its own page (the entries are idempotent).
+     */
+    private static class FanOutTask implements DeferredTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long authorId;
+        private final long messageId;
+        private final Date date;
+        private final String cursor;
+
+        FanOutTask(long authorId, long messageId, Date date) {
+            this(authorId, messageId, date, null);
+        }
+
+        FanOutTask(long authorId, long messageId, Date date, String cursor) {
+            this.authorId = authorId;
+            this.messageId = messageId;
+            this.date = date;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            Query<Follower> query = ObjectifyService.ofy()
+                    .load()
+                    .type(Follower.class)
+                    .filter("followedId", authorId)
+                    .limit(BATCH_SIZE);
+            if (cursor != null) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+
+            List<TimelineEntry> entries = new ArrayList<>();
+            QueryResultIterator<Follower> iterator = query.iterator();
+            while (iterator.hasNext()) {
+                entries.add(createEntry(iterator.next().followerId, authorId, messageId, date));
+            }
+            ObjectifyService.ofy().save().entities(entries).now();
+
+            // A full page may be followed by another one
+            if (entries.size() == BATCH_SIZE) {
+                enqueue(new FanOutTask(authorId, messageId, date, iterator.getCursor().toWebSafeString()));
+            }
+        }
+
+    }
+
+    /**
+     * Copies the recent messages of a followed user into the timeline of the follower
+     */
+    private static class BackfillTask implements DeferredTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long followerId;
+        private final long followedId;
+
+        BackfillTask(long followerId, long followedId) {
+            this.followerId = followerId;
+            this.followedId = followedId;
+        }
+
+        @Override
+        public void run() {
+            List<TimelineEntry> entries = new ArrayList<>();
+            for (Message message : MessagesRepository.getMessagesFrom(followedId, BACKFILL_SIZE, null).messages) {
+                entries.add(createEntry(followerId, followedId, message.id, message.date));
+            }
+            ObjectifyService.ofy().save().entities(entries).now();
+        }
+
+    }
+
+    /**
+     * Moves a batch of entries stored under a User to the Timeline of this user, then schedules the next batch.
+     * The Key<Timeline> field of a loaded entry just holds the key of its parent, so the old parent is read from it.
+     */
+    private static class MoveEntriesTask implements DeferredTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String cursor;
+
+        MoveEntriesTask(String cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            Query<TimelineEntry> query = ObjectifyService.ofy()
+                    .load()
+                    .type(TimelineEntry.class)
+                    .limit(BATCH_SIZE);
+            if (cursor != null) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+
+            List<TimelineEntry> moved = new ArrayList<>();
+            List<Key<TimelineEntry>> obsolete = new ArrayList<>();
+            int count = 0;
+            QueryResultIterator<TimelineEntry> iterator = query.iterator();
+            while (iterator.hasNext()) {
+                TimelineEntry entry = iterator.next();
+                count++;
+                if (!Key.getKind(Timeline.class).equals(entry.timeline.getKind())) {
+                    obsolete.add(Key.create(entry));
+                    moved.add(createEntry(entry.timeline.getId(), entry.authorId, entry.messageId, entry.date));
+                }
+            }
+            ObjectifyService.ofy().save().entities(moved).now();
+            ObjectifyService.ofy().delete().keys(obsolete).now();
+
+            if (count == BATCH_SIZE) {
+                enqueue(new MoveEntriesTask(iterator.getCursor().toWebSafeString()));
+            }
+        }
+
+    }
+
+    /**
+     * Removes the messages of an unfollowed user from the timeline of the former follower
+     */
+    private static class PruneTask implements DeferredTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long followerId;
+        private final long followedId;
+
+        PruneTask(long followerId, long followedId) {
+            this.followerId = followerId;
+            this.followedId = followedId;
+        }
+
+        @Override
+        public void run() {
+            List<Key<TimelineEntry>> keys;
+            do {
+                // Deleted entries disappear from the ancestor query, so we always read the first page
+                keys = ObjectifyService.ofy()
+                        .load()
+                        .type(TimelineEntry.class)
+                        .ancestor(getTimelineKey(followerId))
+                        .filter("authorId", followedId)
+                        .limit(BATCH_SIZE)
+                        .keys()
+                        .list();
+                ObjectifyService.ofy().delete().keys(keys).now();
+            } while (keys.size() == BATCH_SIZE);
+        }
+
+    }
+
+}
@@ -1,16 +1,40 @@
 package fr.ecp.sio.appenginedemo.data;
 
 import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.QueryResultIterator;
-import com.googlecode.objectify.ObjectifyFactory;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
 import fr.ecp.sio.appenginedemo.api.ApiException;
+import fr.ecp.sio.appenginedemo.model.EmailIndex;
 import fr.ecp.sio.appenginedemo.model.Follower;
+import fr.ecp.sio.appenginedemo.model.LoginIndex;
 import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.model.UserDeletion;
+import fr.ecp.sio.appenginedemo.utils.LruCache;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
 
 /**
  * This is a repository class for the users.
@@ -24,44 +48,422 @@ public class UsersRepository {
     static {
         ObjectifyService.register(User.class);
         ObjectifyService.register(Follower.class);
+        ObjectifyService.register(LoginIndex.class);
+        ObjectifyService.register(EmailIndex.class);
     }
 
+    // An in-process cache of the users by id, as the users are read by nearly every request.
+    // It is invalidated on each write of a user; the expiry limits the staleness across instances.
+    private static final LruCache<Long, User> USER_CACHE = new LruCache<>(10000, 60 * 1000);
+
+    // Number of users fetched at once when iterating over all the users
+    private static final int STREAM_CHUNK_SIZE = 500;
+
+    // The properties of the public view of a user (with the id), read with projection queries
+    private static final String[] PUBLIC_PROPERTIES = {"login", "avatar"};
+
+    // Maximum number of values of an "in" filter, the Datastore runs one sub-query per value
+    private static final int MAX_IN_VALUES = 30;
+
+    // Set in Memcache when migrateFollowerKeys() has processed every relationship, then remembered by the instance
+    private static final MemcacheService MIGRATIONS = MemcacheServiceFactory.getMemcacheService("migrations");
+    private static final String FOLLOWER_KEYS_MIGRATED = "followerKeys";
+    private static volatile boolean followerKeysMigrated;
+    // Same for migrateUniqueIndexes(): until then, some users have no LoginIndex nor EmailIndex
+    private static final String UNIQUE_INDEXES_MIGRATED = "uniqueIndexes";
+    private static volatile boolean uniqueIndexesMigrated;
+
+    private static final Logger LOGGER = Logger.getLogger(UsersRepository.class.getName());
+
     public static User getUserByLogin(final String login) {
+        if (login == null) {
+            return null;
+        }
+        // The login is the key of a LoginIndex entity: a simple get gives us the id of the user
+        LoginIndex index = ObjectifyService.ofy()
+                .load()
+                .key(Key.create(LoginIndex.class, normalize(login)))
+                .now();
+        if (index != null) {
+            return getUser(index.userId);
+        }
+        // The users created before the LoginIndex entities may not be indexed yet (see migrateUniqueIndexes())
         // We can add filter of a property if this property has the @Index annotation in the model class
         // first() returns only one result
-        return ObjectifyService.ofy()
+        User user = ObjectifyService.ofy()
                 .load()
                 .type(User.class)
                 .filter("login", login)
                 .first()
                 .now();
+        if (user != null) {
+            indexUsers(Collections.singletonList(user));
+        }
+        return user;
     }
 
     public static User getUserByEmail(final String email) {
-        return ObjectifyService.ofy()
+        if (email == null) {
+            return null;
+        }
+        EmailIndex index = ObjectifyService.ofy()
+                .load()
+                .key(Key.create(EmailIndex.class, normalize(email)))
+                .now();
+        if (index != null) {
+            return getUser(index.userId);
+        }
+        // Same fallback as above for the users not indexed yet
+        User user = ObjectifyService.ofy()
                 .load()
                 .type(User.class)
                 .filter("email", email)
                 .first()
                 .now();
+        if (user != null) {
+            indexUsers(Collections.singletonList(user));
+        }
+        return user;
+    }
+
+    /**
+     * Persist a new user, if its login and email are not used yet.
+     * The check and the writes are done in a single transaction on the LoginIndex and EmailIndex entities,
+     * so two concurrent registrations cannot get the same login or email.
+     *
+     * @param user the new user, with an id already allocated
+     * @throws ApiException if the login or the email is already used
+     */
+    public static void createUser(final User user) throws ApiException {
+        // The users not indexed yet are only found by a query (outside of the transaction, queries cannot join it)
+        if (!isUniqueIndexesMigrated()) {
+            if (existsOtherUser("login", user.login, user.id)) {
+                throw new ApiException(400, "duplicateLogin", "Duplicate login");
+            }
+            if (existsOtherUser("email", user.email, user.id)) {
+                throw new ApiException(400, "duplicateEmail", "Duplicate email");
+            }
+        }
+        final LoginIndex loginIndex = new LoginIndex();
+        loginIndex.login = normalize(user.login);
+        loginIndex.userId = user.id;
+        final EmailIndex emailIndex = new EmailIndex();
+        emailIndex.email = normalize(user.email);
+        emailIndex.userId = user.id;
+
+        // The transaction returns the error code, or null if the user was created
+        // Objectify retries it if a concurrent transaction modified the same entities
+        String error = ObjectifyService.ofy().transact(new Work<String>() {
+            @Override
+            public String run() {
+                if (ObjectifyService.ofy().load().key(Key.create(loginIndex)).now() != null) {
+                    return "duplicateLogin";
+                }
+                if (ObjectifyService.ofy().load().key(Key.create(emailIndex)).now() != null) {
+                    return "duplicateEmail";
+                }
+                ObjectifyService.ofy().save().entities(user, loginIndex, emailIndex).now();
+                return null;
+            }
+        });
+        if ("duplicateLogin".equals(error)) {
+            throw new ApiException(400, "duplicateLogin", "Duplicate login");
+        } else if ("duplicateEmail".equals(error)) {
+            throw new ApiException(400, "duplicateEmail", "Duplicate email");
+        }
+        USER_CACHE.remove(user.id);
+        GraphVersions.bumpUsers();
+    }
+
+    /**
+     * Persist a user with a new email, if this email is not used by another user.
+     * Like createUser(), the check and the writes are done in a single transaction.
+     *
+     * @param user  the user to modify
+     * @param email the new email
+     * @throws ApiException if the email is already used
+     */
+    public static void updateEmail(final User user, final String email) throws ApiException {
+        if (!isUniqueIndexesMigrated() && existsOtherUser("email", email, user.id)) {
+            throw new ApiException(400, "duplicateEmail", "Duplicate email");
+        }
+        final String previousEmail = user.email;
+        final EmailIndex emailIndex = new EmailIndex();
+        emailIndex.email = normalize(email);
+        emailIndex.userId = user.id;
+
+        boolean updated = ObjectifyService.ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                EmailIndex existing = ObjectifyService.ofy().load().key(Key.create(emailIndex)).now();
+                if (existing != null && existing.userId != user.id) {
+                    return false;
+                }
+                if (previousEmail != null && !normalize(previousEmail).equals(emailIndex.email)) {
+                    ObjectifyService.ofy().delete().type(EmailIndex.class).id(normalize(previousEmail)).now();
+                }
+                user.email = email;
+                ObjectifyService.ofy().save().entities(user, emailIndex).now();
+                return true;
+            }
+        });
+        if (!updated) {
+            throw new ApiException(400, "duplicateEmail", "Duplicate email");
+        }
+        USER_CACHE.remove(user.id);
+        GraphVersions.bumpUsers();
+    }
+
+    // Logins and emails are unique regardless of their case
+    private static String normalize(String value) {
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // A user with this exact value, other than the given one, found with a query (see createUser())
+    private static boolean existsOtherUser(String property, String value, Long id) {
+        for (Key<User> key : ObjectifyService.ofy()
+                .load()
+                .type(User.class)
+                .filter(property, value)
+                .limit(2)
+                .keys()) {
+            if (id == null || key.getId() != id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Create the LoginIndex and EmailIndex entities of some users
+    // An index already used by another user is left untouched: the collision is logged, for an administrator
+    private static void indexUsers(List<User> users) {
+        for (User user : users) {
+            if (user.login != null) {
+                LoginIndex loginIndex = new LoginIndex();
+                loginIndex.login = normalize(user.login);
+                loginIndex.userId = user.id;
+                Long owner = saveIndex(Key.create(loginIndex), loginIndex, user.id);
+                if (owner != null) {
+                    LOGGER.warning("Login \"" + user.login + "\" of user " + user.id + " already used by user " + owner);
+                }
+            }
+            if (user.email != null) {
+                EmailIndex emailIndex = new EmailIndex();
+                emailIndex.email = normalize(user.email);
+                emailIndex.userId = user.id;
+                Long owner = saveIndex(Key.create(emailIndex), emailIndex, user.id);
+                if (owner != null) {
+                    LOGGER.warning("Email \"" + user.email + "\" of user " + user.id + " already used by user " + owner);
+                }
+            }
+        }
+    }
+
+    // Save an index entity if its key is free, in a transaction
+    // Returns null if the index is saved or already points to the user, else the id of the user it points to
+    private static <T> Long saveIndex(final Key<T> key, final T index, final long userId) {
+        return ObjectifyService.ofy().transact(new Work<Long>() {
+            @Override
+            public Long run() {
+                T existing = ObjectifyService.ofy().load().key(key).now();
+                if (existing == null) {
+                    ObjectifyService.ofy().save().entity(index).now();
+                    return null;
+                }
+                long owner = existing instanceof LoginIndex ? ((LoginIndex) existing).userId : ((EmailIndex) existing).userId;
+                return owner == userId ? null : owner;
+            }
+        });
+    }
+
+    private static boolean isUniqueIndexesMigrated() {
+        if (!uniqueIndexesMigrated && MIGRATIONS.contains(UNIQUE_INDEXES_MIGRATED)) {
+            uniqueIndexesMigrated = true;
+        }
+        return uniqueIndexesMigrated;
+    }
+
+    /**
+     * Start the creation of the LoginIndex and EmailIndex entities of the existing users.
+     * Until it is complete, createUser() and updateEmail() also look for duplicates with queries.
+     * Two users whose logins or emails only differ by their case cannot share an index: the second one is
+     * logged as a collision, to be resolved by an administrator.
+     * The users are also saved again, to index the properties read by the projection queries of getPublicUsers().
+     * The migration runs in the background, one batch per task, and can safely be run several times.
+     */
+    public static void migrateUniqueIndexes() {
+        QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(new IndexUsersTask(null)));
+    }
+
+    /**
+     * Indexes a batch of users, then schedules the next batch
+     */
+    private static class IndexUsersTask implements DeferredTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int BATCH_SIZE = 200;
+
+        private final String cursor;
+
+        IndexUsersTask(String cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            Query<User> query = ObjectifyService.ofy().load().type(User.class).limit(BATCH_SIZE);
+            if (cursor != null) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+            List<User> users = new ArrayList<>();
+            QueryResultIterator<User> iterator = query.iterator();
+            while (iterator.hasNext()) {
+                users.add(iterator.next());
+            }
+            indexUsers(users);
+            // Saved again, so that the properties indexed since their creation (avatar) are indexed too
+            ObjectifyService.ofy().save().entities(users).now();
+
+            if (users.size() == BATCH_SIZE) {
+                QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(
+                        new IndexUsersTask(iterator.getCursor().toWebSafeString())));
+            } else {
+                // Every user has its indexes (or a logged collision), the queries on the users can stop
+                MIGRATIONS.put(UNIQUE_INDEXES_MIGRATED, true);
+            }
+        }
+
     }
 
     public static User getUser(long id) {
-        return ObjectifyService.ofy()
+        User user = USER_CACHE.get(id);
+        if (user == null) {
+            user = ObjectifyService.ofy()
+                    .load()
+                    .type(User.class)
+                    .id(id)
+                    .now();
+            if (user == null) {
+                return null;
+            }
+            USER_CACHE.put(id, copyUser(user));
+            return user;
+        }
+        // The servlets modify the users they get, so each caller receives its own copy
+        return copyUser(user);
+    }
+
+    // The cache of the users, exposed for monitoring (size, hits and misses)
+    public static LruCache<Long, User> getUserCache() {
+        return USER_CACHE;
+    }
+
+    private static User copyUser(User user) {
+        User copy = new User();
+        copy.id = user.id;
+        copy.login = user.login;
+        copy.avatar = user.avatar;
+        copy.blobkey = user.blobkey;
+        copy.coverPicture = user.coverPicture;
+        copy.email = user.email;
+        copy.password = user.password;
+        return copy;
+    }
+
+    /**
+     * Get several users with a single batch get
+     *
+     * @param ids ids of the users
+     * @return the users, in the same order as the ids (unknown ids are skipped)
+     */
+    public static List<User> getUsers(List<Long> ids) {
+        Map<Long, User> users = ObjectifyService.ofy()
                 .load()
                 .type(User.class)
-                .id(id)
-                .now();
+                .ids(ids);
+        List<User> results = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            User user = users.get(id);
+            if (user != null) {
+                results.add(user);
+            }
+        }
+        return results;
     }
 
-    public static UsersList getUsers() {
-        return new UsersList(
-                ObjectifyService.ofy()
-                        .load()
-                        .type(User.class)
-                        .list(),
-                "dummyCursor"
-        );
+    /**
+     * Get a page of the users
+     *
+     * @param limit  number of results to return
+     * @param cursor position to start from in the results
+     * @return a UsersList
+     */
+    public static UsersList getUsers(int limit, String cursor) {
+        Query<User> query = ObjectifyService.ofy().load().type(User.class).limit(limit);
+
+        // If the cursor is set, restart from there
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+
+        List<User> results = new ArrayList<>();
+        QueryResultIterator<User> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            results.add(iterator.next());
+        }
+
+        // A full page means there may be more results: generate a cursor to continue from here
+        String curs = null;
+        if (results.size() == limit) {
+            curs = iterator.getCursor().toWebSafeString();
+        }
+
+        return new UsersList(results, curs);
+    }
+
+    /**
+     * Iterate over all the users, for large exports.
+     * The users are fetched by chunks, and the Objectify session is cleared regularly,
+     * so the memory used does not depend on the number of users.
+     *
+     * @return an Iterable that can be iterated only once
+     */
+    public static Iterable<User> getAllUsers() {
+        final QueryResultIterator<User> iterator = ObjectifyService.ofy()
+                .load()
+                .type(User.class)
+                .chunk(STREAM_CHUNK_SIZE)
+                .iterator();
+        return new Iterable<User>() {
+            @Override
+            public Iterator<User> iterator() {
+                return new Iterator<User>() {
+
+                    private int count;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public User next() {
+                        // The session keeps a reference to every loaded entity, forget the previous chunks
+                        if (++count % STREAM_CHUNK_SIZE == 0) {
+                            ObjectifyService.ofy().clear();
+                        }
+                        return iterator.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                };
+            }
+        };
     }
 
     public static String getAvatarFromBlob(String blob) {
@@ -76,7 +478,8 @@ public class UsersRepository {
 
     public static long allocateNewId() {
         // Sometime we need to allocate an id before persisting, the library allows it
-        return new ObjectifyFactory().allocateId(User.class).getId();
+        // The ids are taken from a pool of ids reserved by blocks, most of the time without any Datastore call
+        return IdPool.forKind(User.class).nextId();
     }
 
     public static void updateAvatar(User user, String blobkey, String url) {
@@ -87,6 +490,8 @@ public class UsersRepository {
                 .entity(user)
                 .now()
                 .getId();
+        USER_CACHE.remove(user.id);
+        GraphVersions.bumpUsers();
     }
 
     public static void saveUser(User user) {
@@ -95,24 +500,115 @@ public class UsersRepository {
                 .entity(user)
                 .now()
                 .getId();
+        USER_CACHE.remove(user.id);
+        GraphVersions.bumpUsers();
     }
 
-    public static void deleteUser(long id) {
+    /**
+     * Delete a user. The user can no longer be read or log in when this method returns,
+     * the rest of its data is deleted in the background (see DeletionsRepository).
+     *
+     * @param id id of the user
+     * @return the progress of the deletion of the data of the user
+     */
+    public static UserDeletion deleteUser(long id) {
+        // Release the login and the email of the user
+        User user = getUser(id);
+        if (user != null) {
+            if (user.login != null) {
+                ObjectifyService.ofy().delete().type(LoginIndex.class).id(normalize(user.login)).now();
+            }
+            if (user.email != null) {
+                ObjectifyService.ofy().delete().type(EmailIndex.class).id(normalize(user.email)).now();
+            }
+        }
+        USER_CACHE.remove(id);
+        FollowGraph.removeUser(id);
+        GraphVersions.bumpUsers();
+        GraphVersions.bumpUser(id);
         ObjectifyService.ofy()
                 .delete()
                 .type(User.class)
                 .id(id)
                 .now();
+        // The relationships, messages, timeline and counters of the user are deleted in the background
+        return DeletionsRepository.startUserDeletion(id);
+    }
 
-        ObjectifyService.ofy()
-                .delete()
-                .keys(ObjectifyService.ofy().load().type(Follower.class).filter("followedBy", id).keys().list())
-                .now();
+    /**
+     * Get the public view of a user (id, login and avatar only), see getPublicUsers()
+     *
+     * @param id id of the user
+     * @return the public view of the user, or null if not found
+     */
+    public static User getPublicUser(long id) {
+        List<User> users = getPublicUsers(Collections.singletonList(id));
+        return users.isEmpty() ? null : users.get(0);
+    }
 
-        ObjectifyService.ofy()
-                .delete()
-                .keys(ObjectifyService.ofy().load().type(Follower.class).filter("followerOf", id).keys().list())
-                .now();
+    /**
+     * Get the public views of several users (id, login and avatar only).
+     * The users missing from the cache are read with projection queries on the keys, so their private properties
+     * (email, password hash...) are never read from the Datastore: the values come from the indexes.
+     * A single query covers up to MAX_IN_VALUES users, the queries of a page are run in parallel.
+     *
+     * @param ids ids of the users
+     * @return the public views, in the same order as the ids (unknown ids are skipped)
+     */
+    public static List<User> getPublicUsers(List<Long> ids) {
+        Map<Long, User> users = new HashMap<>();
+
+        // First, take the users in the cache
+        List<Key<User>> missing = new ArrayList<>();
+        for (Long id : ids) {
+            User cached = USER_CACHE.get(id);
+            if (cached != null) {
+                users.put(id, obfuscatedUser(cached));
+            } else if (!users.containsKey(id)) {
+                // A placeholder, so that a repeated id is only queried once
+                users.put(id, null);
+                missing.add(Key.create(User.class, id));
+            }
+        }
+
+        // Then start a projection query for each chunk of keys, without waiting for the results
+        List<List<User>> projections = new ArrayList<>();
+        for (int i = 0; i < missing.size(); i += MAX_IN_VALUES) {
+            projections.add(ObjectifyService.ofy()
+                    .load()
+                    .type(User.class)
+                    .filterKey("in", missing.subList(i, Math.min(missing.size(), i + MAX_IN_VALUES)))
+                    .project(PUBLIC_PROPERTIES)
+                    .list());
+        }
+        for (List<User> projection : projections) {
+            for (User user : projection) {
+                users.put(user.id, user);
+            }
+        }
+
+        // A projection query skips the entities without an indexed value for every projected property
+        // (users saved before the avatar was indexed, see migrateUniqueIndexes()), load these ones entirely
+        List<Long> unindexed = new ArrayList<>();
+        for (Key<User> key : missing) {
+            if (users.get(key.getId()) == null) {
+                unindexed.add(key.getId());
+            }
+        }
+        if (!unindexed.isEmpty()) {
+            for (User user : getUsers(unindexed)) {
+                users.put(user.id, obfuscatedUser(user));
+            }
+        }
+
+        List<User> results = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            User user = users.get(id);
+            if (user != null) {
+                results.add(user);
+            }
+        }
+        return results;
     }
 
     public static User obfuscatedUser(User user) {
@@ -149,15 +645,95 @@ public class UsersRepository {
         return getFollow(id, limit, cursor, "followerId");
     }
 
+    /**
+     * Get the ids of the users followed by a user, without loading the users
+     *
+     * @param id    id of the follower
+     * @param limit maximum number of ids to return
+     * @return a list of user ids
+     */
+    public static List<Long> getFollowedIds(long id, int limit) {
+        // Read from the in-process index of the relationships
+        long[] followed = FollowGraph.getFollowing(id);
+        List<Long> ids = new ArrayList<>(Math.min(limit, followed.length));
+        for (int i = 0; i < followed.length && i < limit; i++) {
+            ids.add(followed[i]);
+        }
+        return ids;
+    }
+
     public static boolean isFollowerOf(long followerId, long followedId) {
+        // A simple get by key, strongly consistent and without any index: the in-process index of the relationships
+        // may miss a follow (or still hold an unfollow) made by another instance, it cannot answer this check
         Follower fol = ObjectifyService.ofy()
                 .load()
-                .type(Follower.class)
-                .filter("followerId", followerId)
-                .filter("followedId", followedId)
-                .first()
+                .key(getFollowerKey(followerId, followedId))
                 .now();
-        return fol != null;
+        // The relationship may still have its old numeric id
+        boolean following = fol != null || migrateLegacyFollower(followerId, followedId);
+        // Correct the index if it is loaded and disagrees
+        FollowGraph.confirm(followerId, followedId, following);
+        return following;
+    }
+
+    /**
+     * Build the deterministic key of a relationship
+     *
+     * @param followerId id of the follower
+     * @param followedId id of the followed
+     * @return the key of the Follower entity
+     */
+    public static Key<Follower> getFollowerKey(long followerId, long followedId) {
+        return Key.create(Follower.class, getFollowerName(followerId, followedId));
+    }
+
+    private static String getFollowerName(long followerId, long followedId) {
+        return followerId + ":" + followedId;
+    }
+
+    /**
+     * Move a relationship still stored with a numeric id (see migrateFollowerKeys()) to its deterministic key.
+     * These entities cannot be loaded into the Follower class, so they are found with the low-level Datastore API.
+     * The lookup is skipped once the migration has processed every relationship.
+     *
+     * @param followerId id of the follower
+     * @param followedId id of the followed
+     * @return true if such a relationship was found, it now exists with its deterministic key
+     */
+    private static boolean migrateLegacyFollower(long followerId, long followedId) {
+        if (isFollowerKeysMigrated()) {
+            return false;
+        }
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        com.google.appengine.api.datastore.Query query =
+                new com.google.appengine.api.datastore.Query(Key.getKind(Follower.class))
+                        .setFilter(CompositeFilterOperator.and(
+                                new FilterPredicate("followerId", FilterOperator.EQUAL, followerId),
+                                new FilterPredicate("followedId", FilterOperator.EQUAL, followedId)))
+                        .setKeysOnly();
+        List<com.google.appengine.api.datastore.Key> obsolete = new ArrayList<>();
+        for (Entity entity : datastore.prepare(query).asIterable()) {
+            if (entity.getKey().getName() == null) {
+                obsolete.add(entity.getKey());
+            }
+        }
+        if (obsolete.isEmpty()) {
+            return false;
+        }
+        Follower fol = new Follower();
+        fol.followerId = followerId;
+        fol.followedId = followedId;
+        fol.id = getFollowerName(followerId, followedId);
+        ObjectifyService.ofy().save().entity(fol).now();
+        datastore.delete(obsolete);
+        return true;
+    }
+
+    private static boolean isFollowerKeysMigrated() {
+        if (!followerKeysMigrated && MIGRATIONS.contains(FOLLOWER_KEYS_MIGRATED)) {
+            followerKeysMigrated = true;
+        }
+        return followerKeysMigrated;
     }
 
     /**
@@ -171,8 +747,8 @@ public class UsersRepository {
      * @return a UsersList
      */
     private static UsersList getFollow(long id, int limit, String cursor, String qFilter) {
-        // Initializes the list of users that will be returned
-        List<User> results = new ArrayList<>();
+        // Initializes the list of the ids of the users that will be returned
+        List<Long> ids = new ArrayList<>();
 
         // Query parameterization
         Query<Follower> query = ObjectifyService.ofy().load().type(Follower.class).filter(qFilter, id).limit(limit);
@@ -192,9 +768,9 @@ public class UsersRepository {
         while (iterator.hasNext()) {
             Follower fol = iterator.next();
             if (qFilter.equals("followedId"))
-                results.add(getUser(fol.followerId));
+                ids.add(fol.followerId);
             else
-                results.add(getUser(fol.followedId));
+                ids.add(fol.followedId);
             genCursor = true;
         }
 
@@ -204,7 +780,8 @@ public class UsersRepository {
             curs = iterator.getCursor().toWebSafeString();
         }
 
-        return new UsersList(results, curs);
+        // Load the public views of all the users of the page at once
+        return new UsersList(getPublicUsers(ids), curs);
     }
 
     /**
@@ -214,31 +791,123 @@ public class UsersRepository {
      * @param followedId id of the followed
      * @param followed   boolean. true: follow, false: unfollow
      */
-    public static void setFollowRelationship(long followerId, long followedId, boolean followed) throws ApiException {
-        // try to get this relationship
-        Follower fol = ObjectifyService.ofy()
-                .load()
-                .type(Follower.class)
-                .filter("followerId", followerId)
-                .filter("followedId", followedId)
-                .first()
-                .now();
-        // it doesn't exist and we wan't to create it
-        if (followed && (fol == null)) {
-            Follower tmpFol = new Follower();
-            tmpFol.followedId = followedId;
-            tmpFol.followerId = followerId;
-            tmpFol.id = new ObjectifyFactory().allocateId(Follower.class).getId();
-            ObjectifyService.ofy()
-                    .save()
-                    .entity(tmpFol)
-                    .now();
-            // it exists and we wan't to delete it
-        } else if (!followed && (fol != null)) {
-            ObjectifyService.ofy()
-                    .delete()
-                    .entity(fol)
-                    .now();
+    public static void setFollowRelationship(final long followerId, final long followedId, final boolean followed) throws ApiException {
+        // A relationship still stored with its old numeric id is first moved to its deterministic key,
+        // so it is neither duplicated by a follow nor left in place by an unfollow
+        migrateLegacyFollower(followerId, followedId);
+
+        // Read and write the relationship in a transaction, directly by its key
+        // The key is deterministic: concurrent follows write the same entity, instead of creating duplicates,
+        // and only one of them is counted
+        final Key<Follower> key = getFollowerKey(followerId, followedId);
+        boolean changed = ObjectifyService.ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                Follower fol = ObjectifyService.ofy()
+                        .load()
+                        .key(key)
+                        .now();
+                // it doesn't exist and we wan't to create it
+                if (followed && (fol == null)) {
+                    Follower tmpFol = new Follower();
+                    tmpFol.followedId = followedId;
+                    tmpFol.followerId = followerId;
+                    tmpFol.id = key.getName();
+                    ObjectifyService.ofy()
+                            .save()
+                            .entity(tmpFol)
+                            .now();
+                    return true;
+                    // it exists and we wan't to delete it
+                } else if (!followed && (fol != null)) {
+                    ObjectifyService.ofy()
+                            .delete()
+                            .key(key)
+                            .now();
+                    return true;
+                }
+                return false;
+            }
+        });
+        if (!changed) {
+            return;
+        }
+
+        FollowGraph.setFollowing(followerId, followedId, followed);
+        if (followed) {
+            // copy the recent messages of the followed user into the home timeline of the follower
+            TimelinesRepository.backfill(followerId, followedId);
+        } else {
+            // remove the messages of the unfollowed user from the home timeline
+            TimelinesRepository.prune(followerId, followedId);
+        }
+        // the cached followed/followers lists of both users are now outdated
+        GraphVersions.bumpUser(followerId);
+        GraphVersions.bumpUser(followedId);
+        CountersRepository.increment(followerId, CountersRepository.FOLLOWING, followed ? 1 : -1);
+        CountersRepository.increment(followedId, CountersRepository.FOLLOWERS, followed ? 1 : -1);
+    }
+
+    /**
+     * Start the migration of the relationships created with a random id to the deterministic keys.
+     * The migration runs in the background, one batch per task, and can safely be run several times.
+     */
+    public static void migrateFollowerKeys() {
+        QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(new MigrateFollowerKeysTask(null)));
+    }
+
+    /**
+     * Rewrites a batch of Follower entities with a numeric id, then schedules the next batch.
+     * The old entities are read with the low-level Datastore API, as they cannot be loaded into the new model class.
+     */
+    private static class MigrateFollowerKeysTask implements DeferredTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int BATCH_SIZE = 250;
+
+        private final String cursor;
+
+        MigrateFollowerKeysTask(String cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+            FetchOptions options = FetchOptions.Builder.withLimit(BATCH_SIZE);
+            if (cursor != null) {
+                options.startCursor(Cursor.fromWebSafeString(cursor));
+            }
+            QueryResultList<Entity> page = datastore
+                    .prepare(new com.google.appengine.api.datastore.Query(Key.getKind(Follower.class)))
+                    .asQueryResultList(options);
+
+            List<Follower> migrated = new ArrayList<>();
+            List<com.google.appengine.api.datastore.Key> obsolete = new ArrayList<>();
+            for (Entity entity : page) {
+                // Entities already migrated have a name instead of a numeric id
+                if (entity.getKey().getName() == null) {
+                    Follower fol = new Follower();
+                    fol.followerId = (Long) entity.getProperty("followerId");
+                    fol.followedId = (Long) entity.getProperty("followedId");
+                    fol.id = getFollowerName(fol.followerId, fol.followedId);
+                    migrated.add(fol);
+                    obsolete.add(entity.getKey());
+                }
+            }
+            // The new entities are saved with Objectify, so the Memcache entries of their keys are updated too
+            // Duplicated relationships are merged, as they get the same key
+            ObjectifyService.ofy().save().entities(migrated).now();
+            datastore.delete(obsolete);
+
+            if (page.size() == BATCH_SIZE) {
+                QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withPayload(
+                        new MigrateFollowerKeysTask(page.getCursor().toWebSafeString())));
+            } else {
+                // Every relationship has its deterministic key, the lookups of the old ones can stop
+                MIGRATIONS.put(FOLLOWER_KEYS_MIGRATED, true);
+            }
         }
 
     }
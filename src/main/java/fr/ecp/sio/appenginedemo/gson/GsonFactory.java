@@ -10,15 +10,20 @@ public class GsonFactory {
 
     public static final String ISO_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
 
-    // This method creates a instance of Gson properly configured to be used everywhere on our server
+    // A Gson instance is immutable and thread-safe, so a single one is shared by all the requests.
+    // This way, the adapters are created once and kept in the cache of this instance.
+    private static final Gson GSON = new GsonBuilder()
+            .disableHtmlEscaping()
+            // This configures Gson to properly handle the Ref<?> fields defined in our model class
+            .registerTypeAdapterFactory(new RefAdapterFactory())
+            // Our model classes are read and written by specific adapters, without reflection
+            .registerTypeAdapterFactory(new ModelAdapterFactory())
+            .setDateFormat(ISO_DATE_FORMAT)
+            .create();
+
+    // This method returns the instance of Gson properly configured to be used everywhere on our server
     public static Gson getGson() {
-        // A builder pattern, with chained calls to set things up, then create()
-        return new GsonBuilder()
-                .disableHtmlEscaping()
-                // This configures Gson to properly handle the Ref<?> fields defined in our model class
-                .registerTypeAdapterFactory(new RefAdapterFactory())
-                .setDateFormat(ISO_DATE_FORMAT)
-                .create();
+        return GSON;
     }
 
 }
@@ -0,0 +1,256 @@
+package fr.ecp.sio.appenginedemo.gson;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.googlecode.objectify.Ref;
+import fr.ecp.sio.appenginedemo.model.Credentials;
+import fr.ecp.sio.appenginedemo.model.Error;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * This AdapterFactory provides hand-written adapters for our model classes.
+ * By default, Gson discovers the fields of a class by reflection and sets them by reflection too.
+ * These adapters read and write the fields directly, which is faster for the classes we send in every response.
+ * They behave like the default adapters: same field names and order, null fields are omitted, unknown fields are ignored.
+ * Any new field in a model class must be added here too!
+ */
+public class ModelAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> typeToken) {
+        Class<? super T> type = typeToken.getRawType();
+        if (type == User.class) {
+            return (TypeAdapter<T>) new UserAdapter().nullSafe();
+        }
+        if (type == Message.class) {
+            // The date and the author are written with the adapters configured in Gson (date format, Ref<>)
+            TypeAdapter<Date> dateAdapter = gson.getAdapter(Date.class);
+            TypeAdapter<Ref<User>> userAdapter = gson.getAdapter(new TypeToken<Ref<User>>() {});
+            return (TypeAdapter<T>) new MessageAdapter(dateAdapter, userAdapter).nullSafe();
+        }
+        if (type == Error.class) {
+            return (TypeAdapter<T>) new ErrorAdapter().nullSafe();
+        }
+        if (type == Credentials.class) {
+            return (TypeAdapter<T>) new CredentialsAdapter().nullSafe();
+        }
+        return null;
+    }
+
+    // Same conversion as the default Gson adapter for strings
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+        return in.nextString();
+    }
+
+    private static class UserAdapter extends TypeAdapter<User> {
+
+        @Override
+        public void write(JsonWriter out, User user) throws IOException {
+            out.beginObject();
+            out.name("id").value(user.id);
+            if (user.login != null) out.name("login").value(user.login);
+            if (user.avatar != null) out.name("avatar").value(user.avatar);
+            if (user.blobkey != null) out.name("blobkey").value(user.blobkey);
+            if (user.coverPicture != null) out.name("coverPicture").value(user.coverPicture);
+            if (user.email != null) out.name("email").value(user.email);
+            if (user.password != null) out.name("password").value(user.password);
+            if (user.followersCount != null) out.name("followersCount").value(user.followersCount);
+            if (user.followingCount != null) out.name("followingCount").value(user.followingCount);
+            if (user.messagesCount != null) out.name("messagesCount").value(user.messagesCount);
+            out.endObject();
+        }
+
+        @Override
+        public User read(JsonReader in) throws IOException {
+            User user = new User();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id":
+                        user.id = in.nextLong();
+                        break;
+                    case "login":
+                        user.login = readString(in);
+                        break;
+                    case "avatar":
+                        user.avatar = readString(in);
+                        break;
+                    case "blobkey":
+                        user.blobkey = readString(in);
+                        break;
+                    case "coverPicture":
+                        user.coverPicture = readString(in);
+                        break;
+                    case "email":
+                        user.email = readString(in);
+                        break;
+                    case "password":
+                        user.password = readString(in);
+                        break;
+                    // The counters are computed by the server, they are never read from a request
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return user;
+        }
+
+    }
+
+    private static class MessageAdapter extends TypeAdapter<Message> {
+
+        private final TypeAdapter<Date> dateAdapter;
+        private final TypeAdapter<Ref<User>> userAdapter;
+
+        MessageAdapter(TypeAdapter<Date> dateAdapter, TypeAdapter<Ref<User>> userAdapter) {
+            this.dateAdapter = dateAdapter;
+            this.userAdapter = userAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, Message message) throws IOException {
+            out.beginObject();
+            if (message.id != null) out.name("id").value(message.id);
+            if (message.text != null) out.name("text").value(message.text);
+            if (message.date != null) {
+                out.name("date");
+                dateAdapter.write(out, message.date);
+            }
+            if (message.user != null) {
+                out.name("user");
+                userAdapter.write(out, message.user);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Message read(JsonReader in) throws IOException {
+            Message message = new Message();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id":
+                        message.id = in.nextLong();
+                        break;
+                    case "text":
+                        message.text = readString(in);
+                        break;
+                    case "date":
+                        message.date = dateAdapter.read(in);
+                        break;
+                    case "user":
+                        message.user = userAdapter.read(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return message;
+        }
+
+    }
+
+    private static class ErrorAdapter extends TypeAdapter<Error> {
+
+        @Override
+        public void write(JsonWriter out, Error error) throws IOException {
+            out.beginObject();
+            out.name("status").value(error.status);
+            if (error.code != null) out.name("code").value(error.code);
+            if (error.message != null) out.name("message").value(error.message);
+            out.endObject();
+        }
+
+        @Override
+        public Error read(JsonReader in) throws IOException {
+            Error error = new Error();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "status":
+                        error.status = in.nextInt();
+                        break;
+                    case "code":
+                        error.code = readString(in);
+                        break;
+                    case "message":
+                        error.message = readString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return error;
+        }
+
+    }
+
+    private static class CredentialsAdapter extends TypeAdapter<Credentials> {
+
+        @Override
+        public void write(JsonWriter out, Credentials credentials) throws IOException {
+            out.beginObject();
+            if (credentials.login != null) out.name("login").value(credentials.login);
+            if (credentials.password != null) out.name("password").value(credentials.password);
+            out.endObject();
+        }
+
+        @Override
+        public Credentials read(JsonReader in) throws IOException {
+            Credentials credentials = new Credentials();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "login":
+                        credentials.login = readString(in);
+                        break;
+                    case "password":
+                        credentials.password = readString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return credentials;
+        }
+
+    }
+
+}
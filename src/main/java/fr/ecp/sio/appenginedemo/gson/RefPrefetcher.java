@@ -0,0 +1,55 @@
+package fr.ecp.sio.appenginedemo.gson;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Ref;
+import fr.ecp.sio.appenginedemo.data.MessagesRepository;
+import fr.ecp.sio.appenginedemo.model.Message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The Ref<> adapter of the RefAdapterFactory gets the target of each Ref<> during the serialization.
+ * A Ref<> that is not loaded yet would cost a datastore get in the middle of the writing of the response.
+ * This class walks a response before it is serialized, collects all the Ref<> not loaded yet,
+ * and loads them all with a single batch get. Then the adapter only finds loaded values.
+ */
+public class RefPrefetcher {
+
+    /**
+     * Load all the unloaded Ref<> found in a response
+     *
+     * @param response the object that will be written as JSON
+     */
+    public static void prefetch(Object response) {
+        List<Ref<?>> refs = new ArrayList<>();
+        collect(response, refs);
+        if (!refs.isEmpty()) {
+            // The loaded entities go into the session cache, where the Ref<> will find them
+            // The Ref<> may target different kinds, Objectify loads them all at once anyway
+            @SuppressWarnings("unchecked")
+            List<Ref<Object>> untypedRefs = (List<Ref<Object>>) (List<?>) refs;
+            ObjectifyService.ofy().load().refs(untypedRefs);
+        }
+    }
+
+    // Only the classes of our responses that may contain a Ref<> need to be visited
+    private static void collect(Object object, List<Ref<?>> refs) {
+        if (object instanceof Ref) {
+            Ref<?> ref = (Ref<?>) object;
+            if (!ref.isLoaded()) {
+                refs.add(ref);
+            }
+        } else if (object instanceof Message) {
+            collect(((Message) object).user, refs);
+        } else if (object instanceof MessagesRepository.MessagesList) {
+            collect(((MessagesRepository.MessagesList) object).messages, refs);
+        } else if (object instanceof Collection) {
+            for (Object element : (Collection<?>) object) {
+                collect(element, refs);
+            }
+        }
+    }
+
+}
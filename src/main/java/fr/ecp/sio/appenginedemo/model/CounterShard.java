@@ -0,0 +1,20 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * A model class to represent one shard of a counter of a user (followers, following, messages).
+ * A counter is split into several shards, incremented at random, so that the concurrent updates
+ * of a popular account do not all compete for the same entity. The value of the counter is the sum of its shards.
+ */
+@Entity
+public class CounterShard {
+
+    // "userId:counter:shard", see CountersRepository
+    @Id
+    public String id;
+
+    public long count;
+
+}
@@ -0,0 +1,11 @@
+package fr.ecp.sio.appenginedemo.model;
+
+/**
+ * A model class to represent the body of a token request (see TokenServlet)
+ */
+public class Credentials {
+
+    public String login;
+    public String password;
+
+}
@@ -0,0 +1,21 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * This class maps a normalized email (lower case) to the id of its user.
+ * As the email is the key of the entity, it can be read directly and checked for unicity in a transaction,
+ * see UsersRepository.createUser().
+ */
+@Entity
+@Cache(expirationSeconds = 3600)
+public class EmailIndex {
+
+    @Id
+    public String email;
+
+    public long userId;
+
+}
@@ -1,5 +1,6 @@
 package fr.ecp.sio.appenginedemo.model;
 
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
@@ -9,9 +10,12 @@ import com.googlecode.objectify.annotation.Index;
  * the members are self explaining
  */
 @Entity
+@Cache(expirationSeconds = 3600)
 public class Follower {
+    // The id is built from the pair of users ("followerId:followedId"), see UsersRepository.getFollowerKey()
+    // A relationship can then be read, created or deleted directly by its key, without any query
     @Id
-    public long id;
+    public String id;
 
     @Index
     public long followerId;
@@ -1,8 +1,10 @@
 package fr.ecp.sio.appenginedemo.model;
 
 import com.googlecode.objectify.Ref;
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Load;
 
 import java.util.Date;
@@ -12,13 +14,19 @@ import java.util.Date;
  */
 // The annotation comes from the Objectify library.
 // It identifies this class as persistable into the Datastore.
+// The @Cache annotation keeps the messages in Memcache for one day at most (they are rarely modified).
+// This lifetime can be changed in appengine-web.xml, see ConfiguredObjectifyFactory.
 @Entity
+@Cache(expirationSeconds = 86400)
 public class Message {
 
     // An entity should have a field marked with the @Id annotation; it becomes the id for the Datastore (unicity, index, etc.)
     @Id
     public Long id;
     public String text;
+
+    // Indexed so that the timeline of an author can be sorted by date directly by the Datastore
+    @Index
     public Date date;
 
     // We don't use a simple User field for the author of the message.
@@ -26,6 +34,9 @@ public class Message {
     // This trick allows lazy loading of users, and populating our model classes (remember there is not JOIN in the Datastore).
     // We take care of how this Ref<> will be serialized into JSON in the GsonFactory class.
     // The @Load annotation is required for automatically loading the author when a message is retrieved.
+    // The @Index annotation stores the key of the author in an index, so we can query the messages of a user.
+    // The messages saved before this annotation are indexed by the "messages" migration (see MigrationServlet).
+    @Index
     @Load
     public Ref<User> user;
 
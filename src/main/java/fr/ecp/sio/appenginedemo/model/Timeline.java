@@ -0,0 +1,18 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * The root of the home timeline of a user, the parent of its TimelineEntry entities.
+ * It has the id of the owner of the timeline, and is never saved: only its key is used, as the root of an entity group.
+ * The entries are not stored under the User itself, so the writes of the fan-out (one per follower) never contend
+ * with the writes of the profile of the user, nor are limited with them by the rate of writes to an entity group.
+ */
+@Entity
+public class Timeline {
+
+    @Id
+    public Long id;
+
+}
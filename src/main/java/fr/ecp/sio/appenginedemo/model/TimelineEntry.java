@@ -0,0 +1,35 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.util.Date;
+
+/**
+ * A model class to represent a message pushed into the home timeline of a user.
+ * The entries of a timeline all share the same parent (the Timeline of the owner), so the timeline
+ * can be read with a single strongly consistent ancestor query.
+ */
+@Entity
+public class TimelineEntry {
+
+    // The timeline, with the id of its owner
+    @Parent
+    public Key<Timeline> timeline;
+
+    // The id of the entry is the id of the message: pushing the same message twice is harmless
+    @Id
+    public Long messageId;
+
+    // The author of the message, used to prune the timeline on unfollow
+    @Index
+    public long authorId;
+
+    // A copy of the date of the message, to sort the timeline without loading the messages
+    @Index
+    public Date date;
+
+}
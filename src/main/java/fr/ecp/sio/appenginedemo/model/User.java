@@ -1,13 +1,19 @@
 package fr.ecp.sio.appenginedemo.model;
 
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 
 /**
  * A model class to represent a single user
  */
+// The @Cache annotation keeps the users in Memcache, in front of the Datastore, for one hour at most.
+// Objectify updates the cached value on each save or delete.
+// This lifetime can be changed in appengine-web.xml, see ConfiguredObjectifyFactory.
 @Entity
+@Cache(expirationSeconds = 3600)
 public class User {
 
     @Id
@@ -18,6 +24,8 @@ public class User {
     @Index
     public String login;
 
+    // Indexed, so that the public view of a user (id, login, avatar) can be read with a projection query
+    @Index
     public String avatar;
 
     @Index
@@ -29,4 +37,13 @@ public class User {
 
     public String password;
 
+    // The counters of the user, only filled in the profile responses (see CountersRepository)
+    // The @Ignore annotation tells Objectify not to persist them
+    @Ignore
+    public Long followersCount;
+    @Ignore
+    public Long followingCount;
+    @Ignore
+    public Long messagesCount;
+
 }
\ No newline at end of file
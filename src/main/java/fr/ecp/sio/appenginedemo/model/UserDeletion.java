@@ -0,0 +1,33 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * A model class to represent the progress of the deletion of the data of a user.
+ * The data is deleted in the background, one batch per task; this entity records where the deletion stopped,
+ * so a failed or retried task resumes from there. See DeletionsRepository.
+ */
+@Entity
+public class UserDeletion {
+
+    // The id of the deleted user
+    @Id
+    public long userId;
+
+    // The kind of data being deleted, see DeletionsRepository
+    public String stage;
+
+    // The position reached in the current stage (a web-safe cursor), null at the start of a stage
+    public String cursor;
+
+    // The number of entities deleted so far
+    public long deletedEntities;
+
+    public Date startedAt;
+    public Date updatedAt;
+    public Date finishedAt;
+
+}
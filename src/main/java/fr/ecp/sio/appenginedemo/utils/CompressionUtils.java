@@ -0,0 +1,213 @@
+package fr.ecp.sio.appenginedemo.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Some utils to compress the responses, depending on the encodings accepted by the client.
+ * The statistics of the compression (ratio and time spent) are kept for each endpoint.
+ */
+public class CompressionUtils {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final Logger LOGGER = Logger.getLogger(CompressionUtils.class.getName());
+
+    private static final ConcurrentMap<String, Stats> STATS = new ConcurrentHashMap<>();
+
+    /**
+     * Choose an encoding from the "Accept-Encoding" header of a request, gzip is preferred.
+     * An encoding listed explicitly is accepted according to its own q-value, "*" only covers the others.
+     *
+     * @param acceptEncoding the header, e.g. "gzip, deflate;q=0.5" or "gzip;q=0, *"
+     * @return GZIP, DEFLATE or null if the client accepts none of them
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        // null for an encoding not listed explicitly, "*" then decides
+        Boolean gzip = null;
+        Boolean deflate = null;
+        boolean any = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim();
+            // An encoding with a "q=0" parameter is explicitly refused
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Float.parseFloat(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase(GZIP)) {
+                gzip = accepted;
+            } else if (name.equalsIgnoreCase(DEFLATE)) {
+                deflate = accepted;
+            } else if (name.equals("*")) {
+                any = accepted;
+            }
+        }
+        if (gzip != null ? gzip : any) {
+            return GZIP;
+        }
+        return (deflate != null ? deflate : any) ? DEFLATE : null;
+    }
+
+    /**
+     * Wrap a stream to compress all the data written into it
+     *
+     * @param endpoint the name of the endpoint, for the statistics
+     * @param encoding GZIP or DEFLATE
+     * @param out      the stream receiving the compressed data
+     * @return a stream that must be closed to write the end of the compressed data
+     */
+    public static OutputStream compress(String endpoint, String encoding, OutputStream out) throws IOException {
+        return new CompressingOutputStream(getStats(endpoint), encoding, out);
+    }
+
+    // The statistics of all the endpoints, by endpoint name
+    public static Map<String, Stats> getStats() {
+        return STATS;
+    }
+
+    private static Stats getStats(String endpoint) {
+        Stats stats = STATS.get(endpoint);
+        if (stats == null) {
+            STATS.putIfAbsent(endpoint, new Stats());
+            stats = STATS.get(endpoint);
+        }
+        return stats;
+    }
+
+    /**
+     * The compression statistics of an endpoint
+     */
+    public static class Stats {
+
+        private final AtomicLong responses = new AtomicLong();
+        private final AtomicLong uncompressedBytes = new AtomicLong();
+        private final AtomicLong compressedBytes = new AtomicLong();
+        private final AtomicLong compressionNanos = new AtomicLong();
+
+        public long getResponses() {
+            return responses.get();
+        }
+
+        public long getUncompressedBytes() {
+            return uncompressedBytes.get();
+        }
+
+        public long getCompressedBytes() {
+            return compressedBytes.get();
+        }
+
+        public long getCompressionNanos() {
+            return compressionNanos.get();
+        }
+
+        // Compressed size / uncompressed size, the lower the better
+        public double getRatio() {
+            long uncompressed = uncompressedBytes.get();
+            return uncompressed == 0 ? 1 : (double) compressedBytes.get() / uncompressed;
+        }
+
+    }
+
+    /**
+     * Counts the bytes written to the underlying stream, i.e. the compressed bytes
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+    }
+
+    /**
+     * Compresses the data on the fly and measures the time spent in the compressor.
+     * The time is measured on the request thread, so it is close to the CPU time of the compression.
+     */
+    private static class CompressingOutputStream extends FilterOutputStream {
+
+        private final Stats stats;
+        private final String encoding;
+        private final CountingOutputStream counter;
+        private long uncompressed;
+        private long nanos;
+
+        CompressingOutputStream(Stats stats, String encoding, OutputStream out) throws IOException {
+            super(null);
+            this.stats = stats;
+            this.encoding = encoding;
+            this.counter = new CountingOutputStream(out);
+            long start = System.nanoTime();
+            this.out = GZIP.equals(encoding) ? new GZIPOutputStream(counter) : new DeflaterOutputStream(counter);
+            this.nanos = System.nanoTime() - start;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+            uncompressed++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+            uncompressed += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            ((DeflaterOutputStream) out).finish();
+            nanos += System.nanoTime() - start;
+            out.close();
+
+            stats.responses.incrementAndGet();
+            stats.uncompressedBytes.addAndGet(uncompressed);
+            stats.compressedBytes.addAndGet(counter.count);
+            stats.compressionNanos.addAndGet(nanos);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(encoding + " " + uncompressed + " -> " + counter.count + " bytes in " + nanos / 1000 + " us");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,99 @@
+package fr.ecp.sio.appenginedemo.utils;
+
+/**
+ * A histogram of positive values (latencies, sizes) with a bounded relative error, in the spirit of HdrHistogram.
+ * The values are counted in log-linear buckets: each power of 2 is split into 8 buckets, so a value is known within
+ * 12.5%, from 1 to 2^40 (about 12 days in microseconds, or 1 TB in bytes).
+ * Recording a value is a few shifts and an atomic increment on a striped counter: no lock, no allocation.
+ */
+public class Histogram {
+
+    // 2^3 = 8 linear sub-buckets for each power of 2
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    // The buckets, then the count and the sum of the values
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+
+    private final StripedCounters counters = new StripedCounters(BUCKETS + 2);
+
+    /**
+     * Record a value, the negative values are counted as 0 and the values too large as the maximum
+     */
+    public void record(long value) {
+        long v = Math.max(0, Math.min(MAX_VALUE, value));
+        counters.increment(getBucket(v));
+        counters.increment(COUNT);
+        counters.add(SUM, v);
+    }
+
+    public long getCount() {
+        return counters.get(COUNT);
+    }
+
+    public long getSum() {
+        return counters.get(SUM);
+    }
+
+    /**
+     * @param limit a value
+     * @return the number of values lower than or equal to the limit, approximately (rounded to the bucket)
+     */
+    public long getCountAtOrBelow(long limit) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS && getHighestValue(i) <= limit; i++) {
+            count += counters.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param quantile a number between 0 and 1, e.g. 0.99
+     * @return the highest value of the bucket containing the quantile, 0 if nothing was recorded
+     */
+    public long getValueAtQuantile(double quantile) {
+        // The buckets are read once, so the result is consistent even if values are recorded meanwhile
+        long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = counters.get(i);
+            total += buckets[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets[i];
+            if (count >= rank) {
+                return getHighestValue(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    // The values below 8 have their own bucket, then each power of 2 gets 8 buckets
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long getHighestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+}
@@ -0,0 +1,192 @@
+package fr.ecp.sio.appenginedemo.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small in-process cache, bounded in size (least recently used entries are evicted first) and in time.
+ * Each instance of our application has its own cache, so the entries expire to limit the staleness
+ * of the values modified by other instances.
+ * The cache is thread-safe and counts its hits and misses.
+ * It can also be bounded in weight (e.g. the total length of the arrays it holds), see Weigher.
+ */
+public class LruCache<K, V> {
+
+    /**
+     * Gives the weight of a value, the sum of the weights of the entries is kept under the maximum weight
+     */
+    public interface Weigher<V> {
+
+        long weigh(V value);
+
+    }
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final long maxWeight;
+    private final Weigher<? super V> weigher;
+    private final Map<K, Entry<V>> map;
+    // The sum of the weights of the entries, guarded by the map
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize   maximum number of entries
+     * @param ttlMillis default lifetime of an entry, in milliseconds
+     */
+    public LruCache(int maxSize, long ttlMillis) {
+        this(maxSize, ttlMillis, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param maxSize   maximum number of entries
+     * @param ttlMillis default lifetime of an entry, in milliseconds
+     * @param maxWeight maximum sum of the weights of the entries
+     * @param weigher   the weight of a value
+     */
+    public LruCache(final int maxSize, long ttlMillis, long maxWeight, Weigher<? super V> weigher) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        // A LinkedHashMap in access order does all the LRU job, we just tell it when to drop the eldest entry
+        this.map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > maxSize) {
+                    weight -= eldest.getValue().weight;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns the cached value, or null if it is missing or expired
+    public V get(K key) {
+        Entry<V> entry;
+        synchronized (map) {
+            entry = map.get(key);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                removeEntry(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    // Same as get(), without counting a hit or a miss: for the internal lookups of the owner of the cache
+    public V peek(K key) {
+        synchronized (map) {
+            Entry<V> entry = map.get(key);
+            return entry != null && entry.expiresAt > System.currentTimeMillis() ? entry.value : null;
+        }
+    }
+
+    public void put(K key, V value) {
+        put(key, value, ttlMillis);
+    }
+
+    // Same as above, with a specific lifetime for this entry (it cannot exceed the default lifetime)
+    public void put(K key, V value, long ttlMillis) {
+        long valueWeight = weigher != null ? weigher.weigh(value) : 0;
+        Entry<V> entry = new Entry<>(value, System.currentTimeMillis() + Math.min(ttlMillis, this.ttlMillis), valueWeight);
+        synchronized (map) {
+            removeEntry(key);
+            weight += valueWeight;
+            map.put(key, entry);
+            // Then drop the least recently used entries until the weight fits (the new entry is the last one)
+            Iterator<Map.Entry<K, Entry<V>>> iterator = map.entrySet().iterator();
+            while (weight > maxWeight && iterator.hasNext()) {
+                weight -= iterator.next().getValue().weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    public void remove(K key) {
+        synchronized (map) {
+            removeEntry(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+            weight = 0;
+        }
+    }
+
+    // The sum of the weights of the entries, expired ones included
+    public long getWeight() {
+        synchronized (map) {
+            return weight;
+        }
+    }
+
+    // Must be called with the lock of the map
+    private void removeEntry(K key) {
+        Entry<V> removed = map.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    // A snapshot of the values not expired yet, without changing their access order
+    public List<V> values() {
+        long now = System.currentTimeMillis();
+        List<V> values = new ArrayList<>();
+        synchronized (map) {
+            for (Entry<V> entry : map.values()) {
+                if (entry.expiresAt > now) {
+                    values.add(entry.value);
+                }
+            }
+        }
+        return values;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class Entry<V> {
+
+        final V value;
+        final long expiresAt;
+        final long weight;
+
+        Entry(V value, long expiresAt, long weight) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+package fr.ecp.sio.appenginedemo.utils;
+
+/**
+ * Some utils to parse the parts of the requests (path, parameters and headers).
+ * They are called on every request, so they are written by hand instead of with regular expressions:
+ * they read the characters in place and allocate nothing (except the token returned by getBearerToken()).
+ * Each method accepts exactly the same inputs as the regular expression given in its comment.
+ */
+public class ParseUtils {
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    /**
+     * Same as "^[0-9]*$": only ASCII digits, the empty string is accepted
+     *
+     * @param s     a string
+     * @param start the index of the first character to check
+     * @return true if all the characters from start are digits
+     */
+    public static boolean isDigits(String s, int start) {
+        for (int i = start; i < s.length(); i++) {
+            if (!isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean isDigits(String s) {
+        return isDigits(s, 0);
+    }
+
+    /**
+     * Parse an id, i.e. a non-empty sequence of ASCII digits that fits in a long
+     *
+     * @param s     a string
+     * @param start the index of the first digit
+     * @return the id, or -1 if the characters from start are not a valid id
+     */
+    public static long parseId(String s, int start) {
+        int length = s.length() - start;
+        if (length <= 0) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            int digit = c - '0';
+            // Leading zeros are allowed, so the overflow is checked on the value rather than on the length
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    public static long parseId(String s) {
+        return s == null ? -1 : parseId(s, 0);
+    }
+
+    /**
+     * Same as "^[Mm][Ee]$"
+     *
+     * @param s     a string
+     * @param start the index of the first character to check
+     * @return true if the characters from start are "me", in any case
+     */
+    public static boolean isMe(String s, int start) {
+        return s.length() - start == 2
+                && (s.charAt(start) == 'm' || s.charAt(start) == 'M')
+                && (s.charAt(start + 1) == 'e' || s.charAt(start + 1) == 'E');
+    }
+
+    // Same as "^[tT]rue$"
+    public static boolean isTrue(String s) {
+        return s != null && s.length() == 4
+                && (s.charAt(0) == 't' || s.charAt(0) == 'T')
+                && s.regionMatches(1, "rue", 0, 3);
+    }
+
+    // Same as "^[fF]alse$"
+    public static boolean isFalse(String s) {
+        return s != null && s.length() == 5
+                && (s.charAt(0) == 'f' || s.charAt(0) == 'F')
+                && s.regionMatches(1, "alse", 0, 4);
+    }
+
+    // Same as "^[A-Za-z0-9_-]{4,12}$"
+    public static boolean isLogin(String s) {
+        if (s.length() < 4 || s.length() > 12) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!isWordChar(c) && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same as "^\w{4,12}$", where \w is [a-zA-Z_0-9]
+    public static boolean isPassword(String s) {
+        if (s.length() < 4 || s.length() > 12) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!isWordChar(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as "Bearer (.+)", where . is any character but a line terminator
+     *
+     * @param header the value of the "Authorization" header
+     * @return the token, or null if the header is not well formatted
+     */
+    public static String getBearerToken(String header) {
+        if (header.length() <= BEARER_PREFIX.length() || !header.startsWith(BEARER_PREFIX)) {
+            return null;
+        }
+        for (int i = BEARER_PREFIX.length(); i < header.length(); i++) {
+            if (isLineTerminator(header.charAt(i))) {
+                return null;
+            }
+        }
+        return header.substring(BEARER_PREFIX.length());
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) || c == '_';
+    }
+
+    // The line terminators of java.util.regex, that "." does not match
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+}
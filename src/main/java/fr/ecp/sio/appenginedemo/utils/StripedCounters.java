@@ -0,0 +1,62 @@
+package fr.ecp.sio.appenginedemo.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed array of counters, updated by many threads without contention.
+ * Each counter is split into stripes, a thread always updates the same stripe and a read sums them.
+ * The stripes are padded so that two stripes never share a cache line. No allocation after the construction.
+ */
+public class StripedCounters {
+
+    // A power of 2, enough for the threads of an App Engine instance
+    private static final int STRIPES = 8;
+    // 64 bytes, a cache line, between two stripes
+    private static final int PADDING = 8;
+
+    private final int size;
+    private final int stride;
+    private final AtomicLongArray cells;
+
+    /**
+     * @param size the number of counters
+     */
+    public StripedCounters(int size) {
+        this.size = size;
+        this.stride = size + PADDING;
+        this.cells = new AtomicLongArray(STRIPES * stride);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(int index, long delta) {
+        cells.addAndGet(stripe() + index, delta);
+    }
+
+    public void increment(int index) {
+        cells.incrementAndGet(stripe() + index);
+    }
+
+    public void decrement(int index) {
+        cells.decrementAndGet(stripe() + index);
+    }
+
+    /**
+     * @return the sum of the stripes, not an atomic snapshot when the counter is updated at the same time
+     */
+    public long get(int index) {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * stride + index);
+        }
+        return sum;
+    }
+
+    private int stripe() {
+        // Thread ids are sequential, so the threads of a pool are spread over the stripes
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * stride;
+    }
+
+}
@@ -1,12 +1,16 @@
 package fr.ecp.sio.appenginedemo.utils;
 
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.crypto.spec.SecretKeySpec;
 import java.security.Key;
 import java.security.SignatureException;
+import java.util.Date;
 
 /**
  * Some utils to encrypt and decrypt an API token
@@ -20,6 +24,14 @@ public class TokenUtils {
         KEY = new SecretKeySpec(key, 0, key.length, "AES");
     }
 
+    // The parser is configured once and shared by all the requests (it keeps no state between two calls)
+    private static final JwtParser PARSER = Jwts.parser().setSigningKey(KEY);
+
+    // The tokens already verified, by hash, with the id they contain.
+    // A client sends the same token with every request, so we can skip the decoding and the signature check.
+    // We store a hash rather than the token itself, so the cache never holds valid credentials.
+    private static final LruCache<String, Long> VERIFIED_TOKENS = new LruCache<>(10000, 60 * 60 * 1000);
+
     // Create a token from a user id (simply encrypt it)
     public static String generateToken(long userId) {
         // We use a third-party library that creates standard JSON web tokens (JWT)
@@ -33,11 +45,28 @@ public class TokenUtils {
 
     // Parse the token, decrypt and return the id
     public static long parseToken(String token) throws SignatureException {
-        return Long.parseLong(Jwts.parser()
-                .setSigningKey(KEY)
+        String hash = DigestUtils.sha256Hex(token);
+        Long cachedId = VERIFIED_TOKENS.get(hash);
+        if (cachedId != null) {
+            return cachedId;
+        }
+        Claims claims = PARSER
                 .parseClaimsJws(token)
-                .getBody()
-                .getId());
+                .getBody();
+        long id = Long.parseLong(claims.getId());
+        // A token with an expiration date must not stay in the cache after it
+        Date expiration = claims.getExpiration();
+        if (expiration == null) {
+            VERIFIED_TOKENS.put(hash, id);
+        } else {
+            VERIFIED_TOKENS.put(hash, id, expiration.getTime() - System.currentTimeMillis());
+        }
+        return id;
+    }
+
+    // The cache of the verified tokens, exposed for monitoring (size, hits and misses)
+    public static LruCache<String, Long> getVerifiedTokensCache() {
+        return VERIFIED_TOKENS;
     }
 
-}
\ No newline at end of file
+}
@@ -8,21 +8,21 @@ import org.apache.commons.validator.routines.EmailValidator;
  */
 public class ValidationUtils {
 
-    // Regex patterns for the login and the password
-    private static final String LOGIN_PATTERN = "^[A-Za-z0-9_-]{4,12}$";
-    private static final String PASSWORD_PATTERN = "^\\w{4,12}$";
-    private static final String ID_PATTERN = "^[0-9]*$";
+    // The login, the password and the id are checked by hand-written parsers, see ParseUtils
 
+    // Login: "^[A-Za-z0-9_-]{4,12}$"
     public static boolean validateLogin(String login) {
-        return login != null && login.matches(LOGIN_PATTERN);
+        return login != null && ParseUtils.isLogin(login);
     }
 
+    // Id: "^[0-9]*$"
     public static boolean validateId(String id) {
-        return id != null && id.matches(ID_PATTERN);
+        return id != null && ParseUtils.isDigits(id);
     }
 
+    // Password: "^\w{4,12}$"
     public static boolean validatePassword(String password) {
-        return password != null && password.matches(PASSWORD_PATTERN);
+        return password != null && ParseUtils.isPassword(password);
     }
 
     public static boolean validateEmail(String email) {